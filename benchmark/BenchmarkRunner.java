@@ -0,0 +1,25 @@
+package benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * benchmarks are only compiled in benchmarks profile, it also copies dependencies into target/lib
+ * build: mvn -P benchmarks package
+ * run benchmarks: java -cp "target/DCER-1.0-SNAPSHOT.jar:target/lib/*" benchmark.BenchmarkRunner [regex]
+ * e.g., regex = FilterBenchmark.shrinkFilterUltra, default runs all benchmarks in this package
+ */
+public class BenchmarkRunner {
+    public static void main(String[] args) throws RunnerException {
+        String regex = args.length > 0 ? args[0] : "benchmark\\..*Benchmark";
+        Options opt = new OptionsBuilder()
+                .include(regex)
+                .resultFormat(ResultFormatType.JSON)
+                .result("jmh-result.json")
+                .build();
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,84 @@
+package benchmark;
+
+import filter.ShrinkFilterUltra;
+import org.openjdk.jmh.annotations.*;
+import store.DataType;
+import store.EventCache;
+import store.EventSchema;
+import store.RecordArena;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * EventCache.updatePointers on synthetic ordered events,
+ * schema: (ID INT, VALUE DOUBLE, EVENTTIME LONG), variable 'V1' selects every event
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class EventCacheBenchmark {
+    @Param({"1000000"})
+    public int eventNum;
+
+    // ratio of windows that are inserted into filter
+    @Param({"0.1", "0.5"})
+    public double selectivity;
+
+    private final long window = 1000;
+    private EventSchema schema;
+    private RecordArena records;
+    private int[] pointers;
+    private ShrinkFilterUltra shrinkFilterUltra;
+    // updatePointers changes cache, so each invocation uses a new cache
+    private EventCache cache;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        schema = new EventSchema("SYNTHETIC_BENCH", 20, Arrays.asList("ID", "VALUE", "EVENTTIME"),
+                Arrays.asList(DataType.INT, DataType.DOUBLE, DataType.LONG), Arrays.asList(4, 8, 8));
+        Random random = new Random(7);
+        records = new RecordArena(schema.getFixedRecordLen(), eventNum);
+        pointers = new int[eventNum];
+        ByteBuffer buffer = ByteBuffer.allocate(schema.getFixedRecordLen());
+        long ts = 0;
+        for(int i = 0; i < eventNum; i++){
+            // 10 events per window on average
+            ts += random.nextInt(200);
+            buffer.clear();
+            buffer.putInt(i);
+            buffer.putDouble(random.nextDouble());
+            buffer.putLong(ts);
+            pointers[i] = records.add(buffer.array(), 0);
+        }
+
+        long windowNum = ts / window + 1;
+        shrinkFilterUltra = new ShrinkFilterUltra.Builder((long) (windowNum * selectivity) + 1).build();
+        for(long windowId = 0; windowId < windowNum; windowId++){
+            if(random.nextDouble() < selectivity){
+                shrinkFilterUltra.insert(windowId * window, windowId * window + window - 1, window);
+            }
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void createCache(){
+        Map<String, int[]> varPointers = new HashMap<>(4);
+        varPointers.put("V1", pointers.clone());
+        cache = new EventCache(schema, records, varPointers);
+    }
+
+    @Benchmark
+    public ByteBuffer updatePointers(){
+        return cache.updatePointers("V1", window, 2, shrinkFilterUltra);
+    }
+
+    @Benchmark
+    public ByteBuffer getRecords(){
+        return cache.getRecords(window, shrinkFilterUltra);
+    }
+}
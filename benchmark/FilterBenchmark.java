@@ -0,0 +1,206 @@
+package benchmark;
+
+import filter.ConcurrentCuckooFilter;
+import filter.LockFreeBloomFilter;
+import filter.ShrinkFilter;
+import filter.ShrinkFilterUltra;
+import filter.UpdatedMarkers;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * micro benchmarks of filters, all data are synthetic and generated with a fixed seed
+ * ops of insert/query benchmarks are measured for a whole batch (keyNum keys)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FilterBenchmark {
+    @Param({"100000", "1000000"})
+    public int keyNum;
+
+    private final long window = 1000;
+    private long[] startTimestamps;         // interval i: [startTimestamps[i], startTimestamps[i] + window]
+    private long[] queryTimestamps;         // sorted
+    private String[] keys;
+
+    private ShrinkFilter shrinkFilter;
+    private ShrinkFilterUltra shrinkFilterUltra;
+    private UpdatedMarkers updatedMarkers;
+    private ByteBuffer serializedMarkers;
+    private LockFreeBloomFilter bloomFilter;
+    private ConcurrentCuckooFilter cuckooFilter;
+
+
+    @Setup(Level.Trial)
+    public void setup(){
+        Random random = new Random(7);
+        long maxTs = (long) keyNum * window * 4;
+        startTimestamps = new long[keyNum];
+        queryTimestamps = new long[keyNum];
+        keys = new String[keyNum];
+        for(int i = 0; i < keyNum; i++){
+            startTimestamps[i] = (long) (random.nextDouble() * maxTs);
+            queryTimestamps[i] = (long) (random.nextDouble() * maxTs);
+            keys[i] = "KEY" + random.nextInt();
+        }
+        Arrays.sort(queryTimestamps);
+
+        shrinkFilter = new ShrinkFilter.Builder(keyNum * 2L).build();
+        shrinkFilterUltra = new ShrinkFilterUltra.Builder(keyNum * 2L).build();
+        for(long ts : startTimestamps){
+            shrinkFilter.insert(ts, ts + window, window);
+            shrinkFilterUltra.insert(ts, ts + window, window);
+        }
+
+        // half of intervals are kept after updating
+        updatedMarkers = new UpdatedMarkers(shrinkFilterUltra.getBucketNum());
+        for(int i = 0; i < keyNum; i += 2){
+            long ts = startTimestamps[i];
+            long[][] windowIdAndMarkers = ShrinkFilterUltra.getWindowIdAndMarkers(ts, ts + window, window);
+            for(long[] windowIdAndMarker : windowIdAndMarkers){
+                int[] pair = shrinkFilterUltra.queryWindowId(windowIdAndMarker[0]);
+                if(pair[0] != -1){
+                    updatedMarkers.update(pair[0], pair[1], windowIdAndMarker[1]);
+                }
+            }
+        }
+        serializedMarkers = updatedMarkers.serialize(keyNum >> 1);
+
+        bloomFilter = new LockFreeBloomFilter(0.01, keyNum);
+        cuckooFilter = new ConcurrentCuckooFilter.Builder(keyNum).build();
+        for(int i = 0; i < keyNum; i++){
+            bloomFilter.insert(keys[i]);
+            cuckooFilter.put(startTimestamps[i]);
+        }
+    }
+
+    /**
+     * rebuild changes filter, so each invocation uses a copy
+     * only rebuild benchmarks use this state, then other benchmarks do not copy filters before each call
+     */
+    @State(Scope.Thread)
+    public static class RebuildState {
+        private ShrinkFilter shrinkFilter;
+        private ShrinkFilterUltra shrinkFilterUltra;
+
+        @Setup(Level.Invocation)
+        public void copyFilters(FilterBenchmark benchmark){
+            shrinkFilter = benchmark.shrinkFilter.copy();
+            shrinkFilterUltra = ShrinkFilterUltra.deserialize(benchmark.shrinkFilterUltra.serialize());
+        }
+    }
+
+    @Benchmark
+    public ShrinkFilter shrinkFilterInsert(){
+        ShrinkFilter filter = new ShrinkFilter.Builder(keyNum * 2L).build();
+        for(long ts : startTimestamps){
+            filter.insert(ts, ts + window, window);
+        }
+        return filter;
+    }
+
+    @Benchmark
+    public void shrinkFilterQuery(Blackhole bh){
+        for(long ts : queryTimestamps){
+            bh.consume(shrinkFilter.query(ts, window));
+        }
+    }
+
+    @Benchmark
+    public ShrinkFilter shrinkFilterRebuild(RebuildState state){
+        for(int i = 0; i < keyNum; i += 2){
+            long ts = startTimestamps[i];
+            state.shrinkFilter.updateRange(ts, ts + window, window);
+        }
+        state.shrinkFilter.rebuild();
+        return state.shrinkFilter;
+    }
+
+    @Benchmark
+    public ShrinkFilterUltra shrinkFilterUltraInsert(){
+        ShrinkFilterUltra filter = new ShrinkFilterUltra.Builder(keyNum * 2L).build();
+        for(long ts : startTimestamps){
+            filter.insert(ts, ts + window, window);
+        }
+        return filter;
+    }
+
+    @Benchmark
+    public void shrinkFilterUltraQuery(Blackhole bh){
+        for(long ts : queryTimestamps){
+            bh.consume(shrinkFilterUltra.query(ts, window));
+        }
+    }
+
+    @Benchmark
+    public BitSet shrinkFilterUltraQueryBatch(){
+        BitSet results = new BitSet(keyNum);
+        shrinkFilterUltra.queryBatch(queryTimestamps, window, results);
+        return results;
+    }
+
+    @Benchmark
+    public BitSet shrinkFilterUltraQuerySorted(){
+        BitSet results = new BitSet(keyNum);
+        shrinkFilterUltra.querySorted(queryTimestamps, window, results);
+        return results;
+    }
+
+    @Benchmark
+    public ShrinkFilterUltra shrinkFilterUltraRebuild(RebuildState state){
+        state.shrinkFilterUltra.rebuild(updatedMarkers);
+        return state.shrinkFilterUltra;
+    }
+
+    @Benchmark
+    public ByteBuffer updatedMarkersSerialize(){
+        return updatedMarkers.serialize(keyNum >> 1);
+    }
+
+    @Benchmark
+    public UpdatedMarkers updatedMarkersDeserialize(){
+        return UpdatedMarkers.deserialize(serializedMarkers.duplicate());
+    }
+
+    @Benchmark
+    public LockFreeBloomFilter bloomFilterInsert(){
+        LockFreeBloomFilter filter = new LockFreeBloomFilter(0.01, keyNum);
+        for(String key : keys){
+            filter.insert(key);
+        }
+        return filter;
+    }
+
+    @Benchmark
+    public void bloomFilterContains(Blackhole bh){
+        for(String key : keys){
+            bh.consume(bloomFilter.contains(key));
+        }
+    }
+
+    @Benchmark
+    public ConcurrentCuckooFilter cuckooFilterPut(){
+        ConcurrentCuckooFilter filter = new ConcurrentCuckooFilter.Builder(keyNum).build();
+        for(long ts : startTimestamps){
+            filter.put(ts);
+        }
+        return filter;
+    }
+
+    @Benchmark
+    public void cuckooFilterContains(Blackhole bh){
+        for(long ts : queryTimestamps){
+            bh.consume(cuckooFilter.contains(ts));
+        }
+    }
+}
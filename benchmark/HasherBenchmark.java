@@ -0,0 +1,51 @@
+package benchmark;
+
+import hasher.Murmur2;
+import hasher.Murmur3;
+import hasher.QuickHash;
+import hasher.XXHash;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * hash a single key, byte array hashers use an 8-byte key (same as a window id)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HasherBenchmark {
+    private long key;
+    private byte[] data;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        key = new Random(7).nextLong();
+        data = ByteBuffer.allocate(8).putLong(key).array();
+    }
+
+    @Benchmark
+    public long quickHash64(){
+        return QuickHash.hash64(key);
+    }
+
+    @Benchmark
+    public long murmur2Hash64(){
+        return Murmur2.hash64(data);
+    }
+
+    @Benchmark
+    public long murmur3Hash64(){
+        return Murmur3.hash64(data);
+    }
+
+    @Benchmark
+    public long xxHash64(){
+        return XXHash.hash64(data);
+    }
+}
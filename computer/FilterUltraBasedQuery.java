@@ -3,7 +3,6 @@ package computer;
 import event.CrimesEvent;
 import filter.ShrinkFilterUltra;
 import filter.UpdatedMarkers;
-import org.apache.flink.table.api.*;
 import plan.GeneratedPlan;
 import query.QueryParse;
 import plan.Plan;
@@ -14,8 +13,9 @@ import utils.Pair;
 
 import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.stream.Collectors;
 
+import org.apache.flink.table.api.DataTypes;
+import org.apache.flink.table.api.Schema;
 import org.apache.thrift.TConfiguration;
 import org.apache.thrift.protocol.TBinaryProtocol;
 import org.apache.thrift.protocol.TProtocol;
@@ -26,6 +26,10 @@ import org.apache.thrift.transport.layered.TFramedTransport;
 public class FilterUltraBasedQuery {
     public static int maxMassageLen = 512 * 1024 * 1024 + 100;
     public static int recursionLimit = 64;
+    // number of threads that insert replay intervals into shrink filter ultra
+    public static int insertThreadNum = 4;
+    // if true, we use ProcessQueryByFlink to match records (e.g., verify results of ProcessQueryByNative)
+    public static boolean matchByFlink = false;
 
     static byte[] orByteArrays(byte[] array1, byte[] array2) {
         int length = Math.min(array1.length, array2.length);
@@ -93,6 +97,76 @@ public class FilterUltraBasedQuery {
         }
     }
 
+    static class InsertIntervalThread extends Thread{
+        private final ShrinkFilterUltra.ConcurrentBuilder builder;
+        private final List<ReplayIntervals.TimeInterval> timeIntervals;
+        private final long window;
+        private RuntimeException exception;
+
+        public InsertIntervalThread(ShrinkFilterUltra.ConcurrentBuilder builder, List<ReplayIntervals.TimeInterval> timeIntervals, long window){
+            this.builder = builder;
+            this.timeIntervals = timeIntervals;
+            this.window = window;
+        }
+
+        // if insertion failed, the filter misses intervals, then window filtering has false negatives
+        public void checkException(){
+            if(exception != null){
+                throw exception;
+            }
+        }
+
+        @Override
+        public void run() {
+            try{
+                for(ReplayIntervals.TimeInterval interval : timeIntervals) {
+                    builder.insert(interval.getStartTime(), interval.getEndTime(), window);
+                }
+            }catch (RuntimeException e){
+                exception = e;
+            }
+        }
+    }
+
+    // each thread inserts a contiguous part of time intervals
+    public static ShrinkFilterUltra buildShrinkFilterUltra(ReplayIntervals replayIntervals, long window){
+        int keyNum = replayIntervals.getKeyNumber(window);
+        List<ReplayIntervals.TimeInterval> timeIntervals = replayIntervals.getIntervals();
+        // for small number of intervals, starting threads is more expensive than insertion
+        if(insertThreadNum <= 1 || timeIntervals.size() < 65536){
+            ShrinkFilterUltra shrinkFilter = new ShrinkFilterUltra.Builder(keyNum).build();
+            for(ReplayIntervals.TimeInterval interval : timeIntervals) {
+                shrinkFilter.insert(interval.getStartTime(), interval.getEndTime(), window);
+            }
+            return shrinkFilter;
+        }
+
+        ShrinkFilterUltra.ConcurrentBuilder builder = new ShrinkFilterUltra.ConcurrentBuilder(keyNum);
+        int size = timeIntervals.size();
+        int partitionSize = (size + insertThreadNum - 1) / insertThreadNum;
+        List<InsertIntervalThread> threads = new ArrayList<>(insertThreadNum);
+        for(int start = 0; start < size; start += partitionSize){
+            InsertIntervalThread thread = new InsertIntervalThread(builder, timeIntervals.subList(start, Math.min(size, start + partitionSize)), window);
+            thread.start();
+            threads.add(thread);
+        }
+        for(InsertIntervalThread thread : threads){
+            try{
+                thread.join();
+            }catch (InterruptedException e){
+                // other threads may be still inserting, we cannot return this filter
+                throw new RuntimeException(e.getMessage());
+            }
+        }
+        for(InsertIntervalThread thread : threads){
+            thread.checkException();
+        }
+        if(builder.isFull()){
+            System.out.println("shrink filter ultra is full, some intervals cannot be inserted");
+        }
+        return builder.build();
+    }
+
     static class WindowFilterThread extends Thread{
         private final FilterUltraRPC.Client client;
         private final String varName;
@@ -196,31 +270,22 @@ public class FilterUltraBasedQuery {
         private final FilterUltraRPC.Client client;
         private final long window;
         private final ByteBuffer updatedMarkersBuffer;
-        private final int recordLen;
-        private List<byte[]> events;
-        public PullEventThread(FilterUltraRPC.Client client, long window, ByteBuffer updatedMarkersBuffer, int recordLen){
+        private ByteBuffer recordBuffer;
+        public PullEventThread(FilterUltraRPC.Client client, long window, ByteBuffer updatedMarkersBuffer){
             this.client = client;
             this.window = window;
             this.updatedMarkersBuffer = updatedMarkersBuffer;
-            this.recordLen = recordLen;
         }
 
-        List<byte[]> getAllEvents(){
-            return events;
+        // records are ordered by timestamp, we do not split them into byte arrays
+        ByteBuffer getRecordBuffer(){
+            return recordBuffer;
         }
 
         @Override
         public void run() {
             try{
-                ByteBuffer recordBuffer  = client.getAllFilteredEvents(window, updatedMarkersBuffer);
-                int capacity = recordBuffer.remaining();
-                int recordNum = capacity / recordLen;
-                events = new ArrayList<>(recordNum);
-                for(int i = 0; i < recordNum; ++i){
-                    byte[] record = new byte[recordLen];
-                    recordBuffer.get(record);
-                    events.add(record);
-                }
+                recordBuffer = client.getAllFilteredEvents(window, updatedMarkersBuffer);
             }catch (Exception e){
                 e.printStackTrace();
             }
@@ -234,6 +299,35 @@ public class FilterUltraBasedQuery {
      * @return byte records
      */
     public static List<byte[]> communicate(String sql, List<FilterUltraRPC.Client> clients) {
+        return communicate(sql, clients, null);
+    }
+
+    /**
+     * same as communicate(sql, clients), besides it outputs replay intervals of the first variable
+     * @param sql query sql
+     * @param clients storage nodes
+     * @param matchIntervals if it is not null, we union replay intervals of the first variable into it,
+     *                       each match is contained in one of these intervals
+     * @return byte records (ordered by timestamp)
+     */
+    public static List<byte[]> communicate(String sql, List<FilterUltraRPC.Client> clients, ReplayIntervals matchIntervals) {
+        SortedRecordMerger merger = pullSortedRecords(sql, clients, matchIntervals);
+        List<byte[]> byteRecords = new ArrayList<>(merger.size());
+        while(merger.hasNext()){
+            byteRecords.add(merger.next());
+        }
+        return byteRecords;
+    }
+
+    /**
+     * same as communicate(sql, clients, matchIntervals), but we do not materialize records,
+     * records of each storage node are ordered, merger outputs records in timestamp order
+     * @param sql query sql
+     * @param clients storage nodes
+     * @param matchIntervals if it is not null, we union replay intervals of the first variable into it
+     * @return k-way merger of records that storage nodes return
+     */
+    public static SortedRecordMerger pullSortedRecords(String sql, List<FilterUltraRPC.Client> clients, ReplayIntervals matchIntervals) {
         QueryParse query = new QueryParse(sql);
         String tableName = query.getTableName();
         Map<String, List<String>> ipMap = query.getIpStringMap();
@@ -310,12 +404,10 @@ public class FilterUltraBasedQuery {
                         replayIntervals.union(ri);
                     }
                 }
-                int keyNum = replayIntervals.getKeyNumber(window);
-                shrinkFilter = new ShrinkFilterUltra.Builder(keyNum).build();
-                List<ReplayIntervals.TimeInterval> timeIntervals = replayIntervals.getIntervals();
-                for(ReplayIntervals.TimeInterval interval : timeIntervals) {
-                    shrinkFilter.insert(interval.getStartTime(), interval.getEndTime(), window);
+                if(matchIntervals != null){
+                    matchIntervals.union(replayIntervals);
                 }
+                shrinkFilter = buildShrinkFilterUltra(replayIntervals, window);
                 hasProcessedVarName.add(varName);
                 windowCnt = shrinkFilter.getApproximateWindowNum();
             }else{
@@ -439,7 +531,7 @@ public class FilterUltraBasedQuery {
         ByteBuffer bb = updatedMarkers.serialize(-1);
         List<PullEventThread> pullEventThreads = new ArrayList<>(nodeNum);
         for (FilterUltraRPC.Client client : clients) {
-            PullEventThread thread = new PullEventThread(client, window, bb, recordLen);
+            PullEventThread thread = new PullEventThread(client, window, bb);
             thread.start();
             pullEventThreads.add(thread);
         }
@@ -451,22 +543,21 @@ public class FilterUltraBasedQuery {
             }
         }
 
-        List<byte[]> byteRecords = null;
+        // each node returns ordered records, so we merge them instead of sorting all records
+        List<ByteBuffer> recordBuffers = new ArrayList<>(nodeNum);
         for (PullEventThread t : pullEventThreads){
-            if(byteRecords == null){
-                byteRecords = t.getAllEvents();
-            }else{
-                byteRecords.addAll(t.getAllEvents());
-            }
+            recordBuffers.add(t.getRecordBuffer());
         }
+        SortedRecordMerger merger = new SortedRecordMerger(recordBuffers, recordLen, schema.getColumnInfo("EVENTTIME").getStartPos());
 
         //System.out.println(schema.getRecordStr(byteRecords.get(0)));
-        System.out.println("record size: " + byteRecords.size());
-        return byteRecords;
+        System.out.println("record size: " + merger.size());
+        return merger;
     }
 
-    public static void testCrimesDataset(List<FilterUltraRPC.Client> clients){
-        Schema schema = Schema.newBuilder()
+    // flink schema of crimes records, it is only used when matchByFlink is true
+    private static Schema getCrimesSchema(){
+        return Schema.newBuilder()
                 .column("type", DataTypes.STRING())
                 .column("id", DataTypes.INT())
                 .column("beat", DataTypes.INT())
@@ -476,7 +567,9 @@ public class FilterUltraBasedQuery {
                 .column("eventTime", DataTypes.TIMESTAMP(3))
                 .watermark("eventTime", "eventTime - INTERVAL '0' SECOND")
                 .build();
+    }
 
+    public static void testCrimesDataset(List<FilterUltraRPC.Client> clients){
         String sql =
                 "SELECT * FROM Crimes MATCH_RECOGNIZE(\n" +
                 "    ORDER BY eventTime\n" +
@@ -490,11 +583,21 @@ public class FilterUltraBasedQuery {
                 "        C AS C.type = 'MOTOR_VEHICLE_THEFT' AND C.district = B.district \n" +  //AND C.district = B.district
                 ") MR;";
         long startTime = System.currentTimeMillis();
-        List<byte[]> byteRecords = communicate(sql, clients);
-        List<CrimesEvent> events = byteRecords.stream().map(CrimesEvent::valueOf).collect(Collectors.toList());
+        ReplayIntervals matchIntervals = new ReplayIntervals();
+        SortedRecordMerger merger = pullSortedRecords(sql, clients, matchIntervals);
         long endTime = System.currentTimeMillis();
         System.out.println("========>pull event time: " + (endTime - startTime) + "ms");
-        ProcessQueryByFlink.processQuery(events, schema, sql, "Crimes");
+        if(matchByFlink){
+            List<CrimesEvent> events = new ArrayList<>(merger.size());
+            while(merger.hasNext()){
+                events.add(CrimesEvent.valueOf(merger.next()));
+            }
+            ProcessQueryByFlink.processQuery(events, getCrimesSchema(), sql, "Crimes");
+        }else{
+            // match byte records directly, ProcessQueryByFlink needs POJOs and a new flink environment for each query
+            // matches never span two replay intervals, so partitions are matched in parallel
+            ProcessQueryByNative.processQuery(merger, sql, matchIntervals);
+        }
     }
 
     public static void main(String[] args) throws Exception{
@@ -0,0 +1,513 @@
+package computer;
+
+import query.ArithmeticOperator;
+import query.CompiledPredicate;
+import query.EqualDependentPredicate;
+import query.IndependentPredicate;
+import query.QueryParse;
+import store.ColumnInfo;
+import store.DataType;
+import store.EventSchema;
+import utils.ReplayIntervals;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * in-process matching engine, it replaces ProcessQueryByFlink for the queries that QueryParse supports:
+ * PATTERN (V1 N1*? V2 N2*? ... Vn) WITHIN window, ONE ROW PER MATCH, AFTER MATCH SKIP TO NEXT ROW
+ * records are byte records (declared schema) that computer node pulls from storage nodes,
+ * independent predicates are compiled into primitive kernels, dependent predicates (equal join) read column offsets,
+ * so we neither start flink environment nor convert records into POJOs
+ * semantic: each event that satisfies V1 starts at most one match, and (Vn.eventTime - V1.eventTime) < window,
+ * the match follows preferment order of reluctant quantifiers in SQL row pattern matching:
+ * the earliest V2 that leads to a match, then the earliest V3 that leads to a match, ...
+ * please note that flink (1.16) does not follow this order, it outputs the match that ends earliest,
+ * so V2...Vn of a match may be different events, besides flink may report fewer matches
+ * (e.g., a head that has same timestamp as an earlier head),
+ * set PushDownBasedQuery.matchByFlink/FilterUltraBasedQuery.matchByFlink to verify results with ProcessQueryByFlink
+ * replay intervals are disjoint and each match is contained in one interval,
+ * so parallelMatch splits records at interval boundaries and matches each partition in a thread
+ */
+public class ProcessQueryByNative {
+    public static int matchThreadNum = Runtime.getRuntime().availableProcessors();
+    // we do not split a partition whose size is smaller than this value, thread overhead is larger than matching
+    public static int minPartitionSize = 4096;
+    private final List<String> varNames;
+    private final long window;
+    private final int recordLen;
+    private final int timestampPos;
+    private final CompiledPredicate[][] kernels;          // kernels[i]: independent predicates of varNames[i]
+    private final JoinKernel[][] joinKernels;             // joinKernels[i]: dependent predicates between varNames[i] and previous variables
+    // search state
+    private ByteBuffer bb;
+    private long[] timestamps;
+    private int[][] candidates;                           // candidates[i]: sorted positions of records that satisfy varNames[i]
+    private final int[] binding;                          // binding[i]: position of record that binds varNames[i]
+    private int end;                                      // records that bind variables should be before end (window)
+
+    /**
+     * dependent predicate: leftVar.attr [op C1] = rightVar.attr [op C2]
+     * value is computed in the same way as EqualDependentPredicate.getLeftValue/getRightValue
+     */
+    static final class JoinKernel {
+        final int leftVarId;
+        final int rightVarId;
+        final int startPos;
+        final int len;
+        final DataType dataType;
+        final ArithmeticOperator leftOperator;
+        final double leftConstValue;
+        final ArithmeticOperator rightOperator;
+        final double rightConstValue;
+
+        JoinKernel(EqualDependentPredicate dp, int leftVarId, int rightVarId, ColumnInfo columnInfo){
+            this.leftVarId = leftVarId;
+            this.rightVarId = rightVarId;
+            startPos = columnInfo.getStartPos();
+            len = columnInfo.getOffset();
+            dataType = columnInfo.getDataType();
+            leftOperator = dp.getLeftOperator();
+            leftConstValue = leftOperator == null ? 0 : Double.parseDouble(dp.getLeftConstValue());
+            rightOperator = dp.getRightOperator();
+            rightConstValue = rightOperator == null ? 0 : Double.parseDouble(dp.getRightConstValue());
+        }
+
+        private static double compute(ArithmeticOperator operator, double constValue, double value){
+            switch (operator){
+                case ADD:
+                    return value + constValue;
+                case SUB:
+                    return value - constValue;
+                case MUL:
+                    return value * constValue;
+                default:
+                    // DIV
+                    return value / constValue;
+            }
+        }
+
+        boolean check(ByteBuffer bb, int leftPos, int rightPos){
+            switch (dataType){
+                case INT:{
+                    int v1 = bb.getInt(leftPos + startPos);
+                    int v2 = bb.getInt(rightPos + startPos);
+                    if(leftOperator != null){
+                        v1 = (int) compute(leftOperator, leftConstValue, v1);
+                    }
+                    if(rightOperator != null){
+                        v2 = (int) compute(rightOperator, rightConstValue, v2);
+                    }
+                    return v1 == v2;
+                }
+                case LONG:{
+                    long v1 = bb.getLong(leftPos + startPos);
+                    long v2 = bb.getLong(rightPos + startPos);
+                    if(leftOperator != null){
+                        v1 = (long) compute(leftOperator, leftConstValue, v1);
+                    }
+                    if(rightOperator != null){
+                        v2 = (long) compute(rightOperator, rightConstValue, v2);
+                    }
+                    return v1 == v2;
+                }
+                case FLOAT:{
+                    float v1 = bb.getFloat(leftPos + startPos);
+                    float v2 = bb.getFloat(rightPos + startPos);
+                    if(leftOperator != null){
+                        v1 = (float) compute(leftOperator, leftConstValue, v1);
+                    }
+                    if(rightOperator != null){
+                        v2 = (float) compute(rightOperator, rightConstValue, v2);
+                    }
+                    return v1 == v2;
+                }
+                case DOUBLE:{
+                    double v1 = bb.getDouble(leftPos + startPos);
+                    double v2 = bb.getDouble(rightPos + startPos);
+                    if(leftOperator != null){
+                        v1 = compute(leftOperator, leftConstValue, v1);
+                    }
+                    if(rightOperator != null){
+                        v2 = compute(rightOperator, rightConstValue, v2);
+                    }
+                    return v1 == v2;
+                }
+                default:
+                    // VARCHAR: we cannot support string +-x/, fixed length bytes are padded with zero
+                    for(int i = 0; i < len; i++){
+                        if(bb.get(leftPos + startPos + i) != bb.get(rightPos + startPos + i)){
+                            return false;
+                        }
+                    }
+                    return true;
+            }
+        }
+    }
+
+    /**
+     * compile query
+     * @param query     parsed query, it should be supported (see QueryParse.isUnsupportedQuery)
+     * @param schema    declared schema, pulled records use this schema
+     */
+    public ProcessQueryByNative(QueryParse query, EventSchema schema){
+        if(query.isUnsupportedQuery()){
+            throw new RuntimeException("we cannot support this query, pattern should be (V1 N1*? V2 N2*? ... Vn)");
+        }
+        varNames = query.getVariableNames();
+        window = query.getWindow();
+        recordLen = schema.getFixedRecordLen();
+        timestampPos = schema.getColumnInfo("EVENTTIME").getStartPos();
+        int varNum = varNames.size();
+
+        Map<String, List<String>> ipStringMap = query.getIpStringMap();
+        kernels = new CompiledPredicate[varNum][];
+        for(int i = 0; i < varNum; i++){
+            List<String> ipStrings = ipStringMap.get(varNames.get(i));
+            kernels[i] = new CompiledPredicate[ipStrings.size()];
+            for(int j = 0; j < ipStrings.size(); j++){
+                IndependentPredicate ip = new IndependentPredicate(ipStrings.get(j));
+                kernels[i][j] = ip.compile(schema.getColumnInfo(ip.getAttributeName()));
+            }
+        }
+
+        // a dependent predicate is checked when its later variable is bound
+        List<List<JoinKernel>> joinKernelLists = new ArrayList<>(varNum);
+        for(int i = 0; i < varNum; i++){
+            joinKernelLists.add(new ArrayList<>(4));
+        }
+        for(String dpString : query.getDpStringList()){
+            if(dpString.contains("<") || dpString.contains(">") || dpString.contains("!")){
+                throw new RuntimeException("currently we only support equal dependent predicate, predicate: " + dpString);
+            }
+            EqualDependentPredicate dp = new EqualDependentPredicate(dpString);
+            int leftVarId = varNames.indexOf(dp.getLeftVariableName().trim());
+            int rightVarId = varNames.indexOf(dp.getRightVariableName().trim());
+            if(leftVarId == -1 || rightVarId == -1){
+                throw new RuntimeException("dependent predicate '" + dpString + "' contains undefined variable name");
+            }
+            ColumnInfo columnInfo = schema.getColumnInfo(dp.getAttributeName().trim());
+            joinKernelLists.get(Math.max(leftVarId, rightVarId)).add(new JoinKernel(dp, leftVarId, rightVarId, columnInfo));
+        }
+        joinKernels = new JoinKernel[varNum][];
+        for(int i = 0; i < varNum; i++){
+            joinKernels[i] = joinKernelLists.get(i).toArray(new JoinKernel[0]);
+        }
+        binding = new int[varNum];
+    }
+
+    static class MatchThread extends Thread {
+        private final ProcessQueryByNative engine;
+        private final byte[] data;
+        private final int from;
+        private final int to;
+        private List<byte[][]> matches;
+        private RuntimeException exception;
+
+        public MatchThread(ProcessQueryByNative engine, byte[] data, int from, int to){
+            this.engine = engine;
+            this.data = data;
+            this.from = from;
+            this.to = to;
+        }
+
+        public List<byte[][]> getMatches(){
+            if(exception != null){
+                throw exception;
+            }
+            return matches;
+        }
+
+        @Override
+        public void run(){
+            try{
+                matches = engine.match(data, from, to);
+            }catch (RuntimeException e){
+                exception = e;
+            }
+        }
+    }
+
+    // List.sort is stable, events with same timestamp keep arrival order
+    private static List<byte[]> sortByTimestamp(List<byte[]> records, int timestampPos){
+        long previousTimestamp = Long.MIN_VALUE;
+        for(byte[] record : records){
+            long timestamp = ByteBuffer.wrap(record).getLong(timestampPos);
+            if(timestamp < previousTimestamp){
+                List<byte[]> sortedRecords = new ArrayList<>(records);
+                sortedRecords.sort(Comparator.comparingLong(r -> ByteBuffer.wrap(r).getLong(timestampPos)));
+                return sortedRecords;
+            }
+            previousTimestamp = timestamp;
+        }
+        return records;
+    }
+
+    /**
+     * interval-parallel matching, see parallelMatch(byte[], QueryParse, EventSchema, ReplayIntervals)
+     * @param records           byte records
+     * @param query             parsed query
+     * @param schema            declared schema
+     * @param replayIntervals   replay intervals that contain all matches, null means we match records in one thread
+     * @return                  matches, they are ordered in the same way as match(records)
+     */
+    public static List<byte[][]> parallelMatch(List<byte[]> records, QueryParse query, EventSchema schema, ReplayIntervals replayIntervals){
+        if(replayIntervals == null || records.size() <= minPartitionSize){
+            return new ProcessQueryByNative(query, schema).match(records);
+        }
+        int recordLen = schema.getFixedRecordLen();
+        List<byte[]> sortedRecords = sortByTimestamp(records, schema.getColumnInfo("EVENTTIME").getStartPos());
+        byte[] data = new byte[sortedRecords.size() * recordLen];
+        for(int i = 0; i < sortedRecords.size(); i++){
+            System.arraycopy(sortedRecords.get(i), 0, data, i * recordLen, recordLen);
+        }
+        return parallelMatch(data, query, schema, replayIntervals);
+    }
+
+    /**
+     * interval-parallel matching, a match never spans two replay intervals,
+     * so we cut ordered records at the start time of intervals, each thread matches several adjacent intervals
+     * @param data              records ordered by timestamp (e.g., SortedRecordMerger.mergeAll())
+     * @param query             parsed query
+     * @param schema            declared schema
+     * @param replayIntervals   replay intervals that contain all matches (e.g., intervals of the first filtered variable),
+     *                          null means we match records in one thread
+     * @return                  matches, they are ordered in the same way as single thread matching
+     */
+    public static List<byte[][]> parallelMatch(byte[] data, QueryParse query, EventSchema schema, ReplayIntervals replayIntervals){
+        int recordLen = schema.getFixedRecordLen();
+        int n = data.length / recordLen;
+        int partitionSize = Math.max(n / Math.max(matchThreadNum, 1) + 1, minPartitionSize);
+        if(replayIntervals == null || n <= partitionSize){
+            return new ProcessQueryByNative(query, schema).match(data, 0, n);
+        }
+        int timestampPos = schema.getColumnInfo("EVENTTIME").getStartPos();
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        replayIntervals.sortAndReconstruct();
+
+        // cut positions, records in [cut_i, cut_{i+1}) are matched by i-th thread
+        List<Integer> cuts = new ArrayList<>(matchThreadNum + 1);
+        cuts.add(0);
+        int pos = 0;
+        for(ReplayIntervals.TimeInterval interval : replayIntervals.getIntervals()){
+            // first record whose timestamp >= start time of this interval
+            while(pos < n && bb.getLong(pos * recordLen + timestampPos) < interval.getStartTime()){
+                pos++;
+            }
+            if(pos - cuts.get(cuts.size() - 1) >= partitionSize && pos < n){
+                cuts.add(pos);
+            }
+        }
+        cuts.add(n);
+
+        List<MatchThread> matchThreads = new ArrayList<>(cuts.size() - 1);
+        for(int i = 0; i < cuts.size() - 1; i++){
+            // each thread needs its own engine, because search state is not shared
+            MatchThread thread = new MatchThread(new ProcessQueryByNative(query, schema), data, cuts.get(i), cuts.get(i + 1));
+            thread.start();
+            matchThreads.add(thread);
+        }
+        for(MatchThread t : matchThreads){
+            try{
+                t.join();
+            }catch (Exception e){
+                e.printStackTrace();
+            }
+        }
+        // concatenate results in time order
+        List<byte[][]> matches = new ArrayList<>();
+        for(MatchThread t : matchThreads){
+            matches.addAll(t.getMatches());
+        }
+        return matches;
+    }
+
+    /**
+     * match byte records
+     * @param records   byte records, if they are not ordered by timestamp we sort them (stable)
+     * @return          matches, matches.get(k)[i] is the record that binds varNames[i] in k-th match
+     */
+    public List<byte[][]> match(List<byte[]> records){
+        int n = records.size();
+        // copy records into one array, so that predicates read primitive values by offset
+        byte[] data = new byte[n * recordLen];
+        List<byte[]> sortedRecords = sortByTimestamp(records, timestampPos);
+        for(int i = 0; i < n; i++){
+            System.arraycopy(sortedRecords.get(i), 0, data, i * recordLen, recordLen);
+        }
+        List<int[]> bindings = matchPositions(ByteBuffer.wrap(data), n);
+        List<byte[][]> matches = new ArrayList<>(bindings.size());
+        for(int[] positions : bindings){
+            byte[][] match = new byte[positions.length][];
+            for(int i = 0; i < positions.length; i++){
+                match[i] = sortedRecords.get(positions[i]);
+            }
+            matches.add(match);
+        }
+        return matches;
+    }
+
+    /**
+     * match ordered records that are stored in one array (e.g., records merged by SortedRecordMerger)
+     * @param data  records ordered by timestamp, i-th record starts at i * recordLen
+     * @param from  index of first record
+     * @param to    index of last record (exclusive)
+     * @return      matches, matched records are copied from data
+     */
+    public List<byte[][]> match(byte[] data, int from, int to){
+        ByteBuffer records = ByteBuffer.wrap(data, from * recordLen, (to - from) * recordLen).slice();
+        List<int[]> bindings = matchPositions(records, to - from);
+        List<byte[][]> matches = new ArrayList<>(bindings.size());
+        for(int[] positions : bindings){
+            byte[][] match = new byte[positions.length][];
+            for(int i = 0; i < positions.length; i++){
+                int recordPos = (from + positions[i]) * recordLen;
+                match[i] = Arrays.copyOfRange(data, recordPos, recordPos + recordLen);
+            }
+            matches.add(match);
+        }
+        return matches;
+    }
+
+    // return positions of matched records, records should be ordered by timestamp
+    private List<int[]> matchPositions(ByteBuffer records, int n){
+        bb = records;
+        timestamps = new long[n];
+        for(int i = 0; i < n; i++){
+            timestamps[i] = bb.getLong(i * recordLen + timestampPos);
+            if(i > 0 && timestamps[i] < timestamps[i - 1]){
+                throw new RuntimeException("records are not ordered by timestamp");
+            }
+        }
+
+        // evaluate independent predicates once for each record
+        int varNum = varNames.size();
+        candidates = new int[varNum][];
+        int[] buffer = new int[n];
+        for(int varId = 0; varId < varNum; varId++){
+            int num = 0;
+            for(int i = 0; i < n; i++){
+                if(satisfy(kernels[varId], i * recordLen)){
+                    buffer[num++] = i;
+                }
+            }
+            candidates[varId] = Arrays.copyOf(buffer, num);
+        }
+
+        List<int[]> bindings = new ArrayList<>();
+        end = 0;
+        for(int head : candidates[0]){
+            // the tail event must be earlier than end, heads are ordered so end only moves forward
+            end = Math.max(end, head + 1);
+            while(end < n && timestamps[end] - timestamps[head] < window){
+                end++;
+            }
+            binding[0] = head;
+            if(varNum == 1 || search(1, head)){
+                bindings.add(binding.clone());
+            }
+        }
+        bb = null;
+        timestamps = null;
+        candidates = null;
+        return bindings;
+    }
+
+    // bind varNames[varId] to a record after prevPos (and before end),
+    // reluctant quantifier N*? prefers fewer rows, so we try positions in order and return the first match (depth first)
+    private boolean search(int varId, int prevPos){
+        int[] positions = candidates[varId];
+        int start = upperBound(positions, prevPos);
+        for(int k = start; k < positions.length && positions[k] < end; k++){
+            int pos = positions[k];
+            if(!satisfyJoin(varId, pos)){
+                continue;
+            }
+            binding[varId] = pos;
+            if(varId == varNames.size() - 1 || search(varId + 1, pos)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // first index whose value > key
+    private static int upperBound(int[] positions, int key){
+        int lo = 0, hi = positions.length;
+        while(lo < hi){
+            int mid = (lo + hi) >>> 1;
+            if(positions[mid] <= key){
+                lo = mid + 1;
+            }else{
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private boolean satisfy(CompiledPredicate[] predicates, int recordPos){
+        for(CompiledPredicate predicate : predicates){
+            if(!predicate.check(bb, recordPos)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean satisfyJoin(int varId, int pos){
+        for(JoinKernel joinKernel : joinKernels[varId]){
+            int leftPos = (joinKernel.leftVarId == varId ? pos : binding[joinKernel.leftVarId]) * recordLen;
+            int rightPos = (joinKernel.rightVarId == varId ? pos : binding[joinKernel.rightVarId]) * recordLen;
+            if(!joinKernel.check(bb, leftPos, rightPos)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * match byte records directly (ProcessQueryByFlink needs POJOs and a flink environment)
+     * @param records   byte records
+     * @param sql       query sql
+     * @return          number of matches
+     */
+    public static int processQuery(List<byte[]> records, String sql){
+        return processQuery(records, sql, null);
+    }
+
+    /**
+     * match records in parallel when replay intervals are known
+     * @param records           byte records
+     * @param sql               query sql
+     * @param replayIntervals   replay intervals that contain all matches, null means we match records in one thread
+     * @return                  number of matches
+     */
+    public static int processQuery(List<byte[]> records, String sql, ReplayIntervals replayIntervals){
+        long startTime = System.currentTimeMillis();
+        QueryParse query = new QueryParse(sql);
+        EventSchema schema = EventSchema.getEventSchema(query.getTableName());
+        List<byte[][]> matches = parallelMatch(records, query, schema, replayIntervals);
+        System.out.println("sum row number: " + matches.size());
+        long endTime = System.currentTimeMillis();
+        System.out.println("========>match time: " + (endTime - startTime) + "ms");
+        return matches.size();
+    }
+
+    /**
+     * match the records that storage nodes return, records are merged in timestamp order without a global sort
+     * @param merger            k-way merger of storage nodes' record buffers
+     * @param sql               query sql
+     * @param replayIntervals   replay intervals that contain all matches, null means we match records in one thread
+     * @return                  number of matches
+     */
+    public static int processQuery(SortedRecordMerger merger, String sql, ReplayIntervals replayIntervals){
+        long startTime = System.currentTimeMillis();
+        QueryParse query = new QueryParse(sql);
+        EventSchema schema = EventSchema.getEventSchema(query.getTableName());
+        List<byte[][]> matches = parallelMatch(merger.mergeAll(), query, schema, replayIntervals);
+        System.out.println("sum row number: " + matches.size());
+        long endTime = System.currentTimeMillis();
+        System.out.println("========>match time: " + (endTime - startTime) + "ms");
+        return matches.size();
+    }
+}
@@ -23,6 +23,8 @@ import java.util.stream.Collectors;
 public class PushDownBasedQuery {
     public static int maxMassageLen = 512 * 1024 * 1024 + 100;
     public static int recursionLimit = 64;
+    // if true, we use ProcessQueryByFlink to match records (e.g., verify results of ProcessQueryByNative)
+    public static boolean matchByFlink = false;
 
     static class PushDownThread extends Thread {
         private final PushDownRPC.Client client;
@@ -95,8 +97,9 @@ public class PushDownBasedQuery {
         return filteredEvent;
     }
 
-    public static void testCrimesDataset(List<PushDownRPC.Client> clients){
-        Schema schema = Schema.newBuilder()
+    // flink schema of crimes records, it is only used when matchByFlink is true
+    private static Schema getCrimesSchema(){
+        return Schema.newBuilder()
                 .column("type", DataTypes.STRING())
                 .column("id", DataTypes.INT())
                 .column("beat", DataTypes.INT())
@@ -106,7 +109,9 @@ public class PushDownBasedQuery {
                 .column("eventTime", DataTypes.TIMESTAMP(3))
                 .watermark("eventTime", "eventTime - INTERVAL '0' SECOND")
                 .build();
+    }
 
+    public static void testCrimesDataset(List<PushDownRPC.Client> clients){
         String sql =
                 "SELECT * FROM Crimes MATCH_RECOGNIZE(\n" +
                 "    ORDER BY eventTime\n" +
@@ -122,12 +127,15 @@ public class PushDownBasedQuery {
 
         long startTime = System.currentTimeMillis();
         List<byte[]> byteRecords = communicate(sql, clients);
-        // we use below statements to generate output
-        List<CrimesEvent> events = byteRecords.stream().map(CrimesEvent::valueOf).collect(Collectors.toList());
         long endTime = System.currentTimeMillis();
         System.out.println("========>pull event time: " + (endTime - startTime) + "ms");
-        // please modify below table name
-        ProcessQueryByFlink.processQuery(events, schema, sql, "Crimes");
+        if(matchByFlink){
+            List<CrimesEvent> events = byteRecords.stream().map(CrimesEvent::valueOf).collect(Collectors.toList());
+            ProcessQueryByFlink.processQuery(events, getCrimesSchema(), sql, "Crimes");
+        }else{
+            // match byte records directly, ProcessQueryByFlink needs POJOs and a new flink environment for each query
+            ProcessQueryByNative.processQuery(byteRecords, sql);
+        }
     }
 
     // testXXXDataset()...
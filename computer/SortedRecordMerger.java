@@ -0,0 +1,145 @@
+package computer;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * k-way merge of the record buffers that storage nodes return,
+ * each node sends its records in timestamp order, so we merge them instead of concatenating and sorting all records
+ * records with same timestamp are output by node order, then by their position in the buffer,
+ * i.e., same as a stable sort over the concatenated records
+ * if a node returns unordered records, we (stably) sort this buffer before merging
+ * please note that number of storage nodes is small, so we use linear scan to find the minimum head
+ */
+public class SortedRecordMerger implements Iterator<byte[]> {
+    private final ByteBuffer[] runs;
+    private final int recordLen;
+    private final int timestampPos;
+    private final int[] positions;          // positions[i]: byte position of next record in runs[i]
+    private final long[] heads;             // heads[i]: timestamp of next record in runs[i]
+    private final int recordNum;
+    private int remaining;
+
+    /**
+     * @param buffers       record buffers, one buffer for each storage node
+     * @param recordLen     record length
+     * @param timestampPos  start position of timestamp column in a record
+     */
+    public SortedRecordMerger(List<ByteBuffer> buffers, int recordLen, int timestampPos){
+        this.recordLen = recordLen;
+        this.timestampPos = timestampPos;
+        int k = buffers.size();
+        runs = new ByteBuffer[k];
+        positions = new int[k];
+        heads = new long[k];
+        int num = 0;
+        for(int i = 0; i < k; i++){
+            ByteBuffer run = buffers.get(i);
+            if(run.remaining() % recordLen != 0){
+                throw new RuntimeException("buffer length " + run.remaining() + " is not a multiple of record length " + recordLen);
+            }
+            runs[i] = isOrdered(run) ? run : sortRun(run);
+            positions[i] = runs[i].position();
+            num += runs[i].remaining() / recordLen;
+            if(positions[i] < runs[i].limit()){
+                heads[i] = runs[i].getLong(positions[i] + timestampPos);
+            }
+        }
+        recordNum = num;
+        remaining = num;
+    }
+
+    private boolean isOrdered(ByteBuffer run){
+        long previousTimestamp = Long.MIN_VALUE;
+        for(int pos = run.position(); pos < run.limit(); pos += recordLen){
+            long timestamp = run.getLong(pos + timestampPos);
+            if(timestamp < previousTimestamp){
+                return false;
+            }
+            previousTimestamp = timestamp;
+        }
+        return true;
+    }
+
+    // List.sort is stable, records with same timestamp keep their order
+    private ByteBuffer sortRun(ByteBuffer run){
+        int num = run.remaining() / recordLen;
+        Integer[] order = new Integer[num];
+        for(int i = 0; i < num; i++){
+            order[i] = run.position() + i * recordLen;
+        }
+        Arrays.sort(order, Comparator.comparingLong(pos -> run.getLong(pos + timestampPos)));
+        ByteBuffer sortedRun = ByteBuffer.allocate(num * recordLen);
+        ByteBuffer record = run.duplicate();
+        for(int pos : order){
+            record.limit(pos + recordLen).position(pos);
+            sortedRun.put(record);
+        }
+        sortedRun.flip();
+        return sortedRun;
+    }
+
+    // run whose head is the minimum, smaller run id wins when timestamps are equal
+    private int nextRun(){
+        int minRun = -1;
+        for(int i = 0; i < runs.length; i++){
+            if(positions[i] < runs[i].limit() && (minRun == -1 || heads[i] < heads[minRun])){
+                minRun = i;
+            }
+        }
+        return minRun;
+    }
+
+    // copy next record into dest
+    private void copyNext(byte[] dest, int destPos){
+        int run = nextRun();
+        ByteBuffer buffer = runs[run];
+        int pos = positions[run];
+        if(buffer.hasArray()){
+            System.arraycopy(buffer.array(), buffer.arrayOffset() + pos, dest, destPos, recordLen);
+        }else{
+            for(int i = 0; i < recordLen; i++){
+                dest[destPos + i] = buffer.get(pos + i);
+            }
+        }
+        pos += recordLen;
+        positions[run] = pos;
+        if(pos < buffer.limit()){
+            heads[run] = buffer.getLong(pos + timestampPos);
+        }
+        remaining--;
+    }
+
+    @Override
+    public boolean hasNext(){
+        return remaining > 0;
+    }
+
+    @Override
+    public byte[] next(){
+        if(remaining == 0){
+            throw new NoSuchElementException();
+        }
+        byte[] record = new byte[recordLen];
+        copyNext(record, 0);
+        return record;
+    }
+
+    /**
+     * merge remaining records into one array, so that matching engine does not need byte[] for each record
+     * @return  ordered records, i-th record starts at i * recordLen
+     */
+    public byte[] mergeAll(){
+        byte[] data = new byte[remaining * recordLen];
+        int num = remaining;
+        for(int i = 0; i < num; i++){
+            copyNext(data, i * recordLen);
+        }
+        return data;
+    }
+
+    // number of records in all buffers
+    public int size(){
+        return recordNum;
+    }
+}
@@ -2,29 +2,106 @@ package engine;
 
 import event.Event;
 
-import java.util.ArrayList;
-import java.util.List;
-
 /**
- * simple version
- * in fact, we should use reference-counter-technique to implement
- * event buffer, then, event buffer will have a small space
+ * ring buffer with reference counter
+ * pointer is the sequence number of an event (it can wrap around), slot = pointer & (capacity - 1)
+ * a partial match retains its events and releases them when it is removed (timeout or consumed),
+ * events that are not referenced by any partial match are reclaimed from the head of ring,
+ * thus buffer only keeps the events of alive partial matches (bounded by query window)
+ * when the head event is still referenced and ring is full, we double capacity
  */
 public class EventBuffer {
-    private List<Event> events;
-    private int count;
+    private Event[] events;
+    private int[] refCounts;
+    private int mask;
+    private int head;                       // pointer of the oldest event that has not been reclaimed
+    private int tail;                       // pointer of next inserted event
 
     EventBuffer(){
-        events = new ArrayList<>(1024);
-        count = 0;
+        this(1024);
+    }
+
+    EventBuffer(int initialCapacity){
+        int capacity = Integer.highestOneBit(Math.max(initialCapacity, 2) - 1) << 1;
+        events = new Event[capacity];
+        refCounts = new int[capacity];
+        mask = capacity - 1;
+        head = 0;
+        tail = 0;
     }
 
     public final int insertEvent(Event event){
-        events.add(event);
-        return count++;
+        if(tail - head == events.length){
+            reclaim();
+            if(tail - head == events.length){
+                grow();
+            }
+        }
+        int slot = tail & mask;
+        events[slot] = event;
+        refCounts[slot] = 0;
+        return tail++;
+    }
+
+    public final Event getEvent(int pointer){
+        return events[pointer & mask];
+    }
+
+    public final void retain(int pointer){
+        refCounts[pointer & mask]++;
+    }
+
+    public final void retain(int[] pointers){
+        for(int pointer : pointers){
+            refCounts[pointer & mask]++;
+        }
+    }
+
+    public final void release(int[] pointers){
+        for(int pointer : pointers){
+            int slot = pointer & mask;
+            if(refCounts[slot] <= 0){
+                throw new RuntimeException("event " + pointer + " is not referenced");
+            }
+            refCounts[slot]--;
+        }
+    }
+
+    /**
+     * remove events that are not referenced from head,
+     * please call it after processing an event, otherwise the new event may be reclaimed
+     */
+    public final void reclaim(){
+        while(head != tail && refCounts[head & mask] == 0){
+            events[head & mask] = null;
+            head++;
+        }
+    }
+
+    // copy [head, tail) into a ring with double capacity, pointers do not change
+    private void grow(){
+        int newCapacity = events.length << 1;
+        if(newCapacity <= 0){
+            throw new RuntimeException("event buffer is too large, maybe some partial matches never expire");
+        }
+        Event[] newEvents = new Event[newCapacity];
+        int[] newRefCounts = new int[newCapacity];
+        int newMask = newCapacity - 1;
+        for(int pointer = head; pointer != tail; pointer++){
+            newEvents[pointer & newMask] = events[pointer & mask];
+            newRefCounts[pointer & newMask] = refCounts[pointer & mask];
+        }
+        events = newEvents;
+        refCounts = newRefCounts;
+        mask = newMask;
+    }
+
+    // number of events that are kept in buffer
+    public final int size(){
+        return tail - head;
     }
 
-    public final Event getEvent(int index){
-        return events.get(index);
+    public final int capacity(){
+        return events.length;
     }
 }
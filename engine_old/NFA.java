@@ -16,7 +16,8 @@ public class NFA {
     private long window;                            // query window
     private Set<State> activeStates;                // active states
     private EventBuffer eventBuffer;                // event buffer
-    private int consumeCount;                       // this variable is used for cleaning up active state
+    private int consumeCount;                       // this variable is used for cleaning up timeout partial matches
+    public static int cleanInterval = 100;          // we remove timeout partial matches per cleanInterval events
 
     public NFA(){
         stateNum = 0;
@@ -190,26 +191,37 @@ public class NFA {
         consumeCount++;
         // Considering that when there are a large number of events,
         // most of the states of the state machine become active,
-        // and some states do not have matching results,
-        // we need to regularly clean up the active states
-        // we clean up the active state per 100 events
-
-        // below codes have serious bug
-//        if(consumeCount == 100) {
-//            Iterator<State> it = activeStates.iterator();
-//            while(it.hasNext()) {
-//                State state = it.next();
-//                PartialMatchBuffer buffer = state.getPartialMatchBuffer();
-//                if (buffer == null) {
-//                    it.remove();
-//                }else if(buffer.getPartialMatchSize() == 0){
-//                    it.remove();
-//                }
-//            }
-//            // we cannot use the following statement, because buffer may be null
-//            // activeStates.removeIf(state -> state.getPartialMatchBuffer().getPartialMatchSize() == 0);
-//            consumeCount = 0;
-//        }
+        // and some partial matches never see an event that satisfies next transition,
+        // we need to regularly remove timeout partial matches, otherwise event buffer cannot reclaim their events
+        if(consumeCount == cleanInterval) {
+            long timestamp = event.getTimestamp();
+            for(State state : activeStates){
+                PartialMatchBuffer buffer = state.getPartialMatchBuffer();
+                // full matches are query results, they are removed by clearFullMatches
+                if(buffer != null && !state.getIsFinal()){
+                    buffer.removeExpiredMatches(timestamp, window, eventBuffer);
+                }
+            }
+            consumeCount = 0;
+        }
+        eventBuffer.reclaim();
+    }
+
+    /**
+     * remove full matches (e.g., after calling getAllMatchedResults), so that their events can be reclaimed
+     * it is useful when we process an unbounded stream
+     */
+    public void clearFullMatches(){
+        for(State s : getFinalStates()){
+            PartialMatchBuffer buffer = s.getPartialMatchBuffer();
+            if(buffer != null){
+                buffer.clear(eventBuffer);
+            }
+        }
+    }
+
+    public EventBuffer getEventBuffer(){
+        return eventBuffer;
     }
 
     public void printFullMatch(){
@@ -277,9 +289,9 @@ public class NFA {
                     // insert pointers
                     int size = stateNames.size();
                     for(PartialMatch fullMatch : fullMatches){
-                        List<Integer> pointers = fullMatch.getEventPointers();
+                        int[] pointers = fullMatch.getEventPointers();
                         for(int i = 0; i < size; ++i){
-                            int pointer = pointers.get(i);
+                            int pointer = pointers[i];
                             infoMap.get(stateNames.get(i)).add(pointer);
                         }
                     }
@@ -1,22 +1,37 @@
 package engine;
 
-import java.util.List;
-
 // notice we do not support Negation, Kleene operators
 // in the future, through maintaining a Map<String (VariableName), List<Integer>>,
 // we maybe could extend NFA to support Negation, Kleene operators
+// event pointers are stored in a fixed-arity int array (arity = number of matched variables),
+// pointers[i] is the event of stateNames[i] in its partial match buffer
 public class PartialMatch {
     private long startTime;
     private long endTime;
     // List<Event> events;
-    private List<Integer> eventPointers;
+    private final int[] eventPointers;
+    private boolean removed;                // removed from partial match buffer (timeout or consumed)
 
-    PartialMatch(long startTime, long endTime, List<Integer> eventPointers){
+    PartialMatch(long startTime, long endTime, int[] eventPointers){
         this.startTime = startTime;
         this.endTime = endTime;
         this.eventPointers = eventPointers;
     }
 
+    // create a partial match that contains one event
+    static PartialMatch create(long timestamp, int eventPointer){
+        return new PartialMatch(timestamp, timestamp, new int[]{eventPointer});
+    }
+
+    // create a new partial match that appends an event to this match, this match is not changed
+    PartialMatch extend(long timestamp, int eventPointer){
+        int len = eventPointers.length;
+        int[] newEventPointers = new int[len + 1];
+        System.arraycopy(eventPointers, 0, newEventPointers, 0, len);
+        newEventPointers[len] = eventPointer;
+        return new PartialMatch(startTime, timestamp, newEventPointers);
+    }
+
     public long getStartTime(){
         return startTime;
     }
@@ -29,29 +44,36 @@ public class PartialMatch {
         this.endTime = endTime;
     }
 
-    public List<Integer> getEventPointers(){
+    public int[] getEventPointers(){
         return eventPointers;
     }
 
     public int getPointer(int index){
-        return eventPointers.get(index);
+        return eventPointers[index];
+    }
+
+    public int size(){
+        return eventPointers.length;
+    }
+
+    boolean isRemoved(){
+        return removed;
+    }
+
+    void setRemoved(){
+        removed = true;
     }
 
     public void print(EventBuffer eventBuffer){
-        String result  = "|";
-        for(int i = 0; i < eventPointers.size(); ++i){
-            result += eventBuffer.getEvent(eventPointers.get(i));
-            result += "|";
-        }
-        System.out.println(result);
+        System.out.println(getSingleMatchedResult(eventBuffer));
     }
 
     public String getSingleMatchedResult(EventBuffer eventBuffer){
-        String result  = "|";
-        for(int i = 0; i < eventPointers.size(); ++i){
-            result += eventBuffer.getEvent(eventPointers.get(i));
-            result += "|";
+        StringBuilder result = new StringBuilder("|");
+        for(int pointer : eventPointers){
+            result.append(eventBuffer.getEvent(pointer));
+            result.append("|");
         }
-        return result;
+        return result.toString();
     }
 }
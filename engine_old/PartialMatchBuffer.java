@@ -1,28 +1,100 @@
 package engine;
 
-import java.util.ArrayList;
-import java.util.List;
+import event.DataType;
+import event.Event;
+import query.DependentPredicate;
+
+import java.util.*;
 
 
 /**
  * Notice we do not support
+ * partial matches are kept in arrival order, besides we maintain:
+ * (1) hash indexes: for each outgoing transition that has equal dependent predicates (e.g., v1.beat = v2.beat),
+ * key is the one side value of buffered variable, an event only probes the partial matches that have same key
+ * (2) a priority queue ordered by start time, so that we can remove timeout partial matches without scanning all matches
+ * removed partial matches are marked and lazily deleted, when there are too many removed matches we rebuild this buffer
  */
 
 public class PartialMatchBuffer {
     // private int length;
     private List<String> stateNames;
-    private List<PartialMatch> partialMatchList;
+    private List<PartialMatch> partialMatchList;    // it may contain removed partial matches
+    private int removedNum;                         // number of removed partial matches in partialMatchList
+    private PriorityQueue<PartialMatch> startTimeQueue;                 // full match buffer does not have this queue
+    private final Map<TransitionCondition, EqualIndex> indexes;
 
     public PartialMatchBuffer(List<String> stateNames){
         // this.length = length;
         this.stateNames = stateNames;
         partialMatchList = new ArrayList<>(512);
+        removedNum = 0;
+        startTimeQueue = null;
+        indexes = new HashMap<>(4);
+    }
+
+    // partial matches of this buffer can timeout (full match buffer should not call this function)
+    void enableExpiry(){
+        if(startTimeQueue == null){
+            startTimeQueue = new PriorityQueue<>(512, Comparator.comparingLong(PartialMatch::getStartTime));
+            startTimeQueue.addAll(partialMatchList);
+        }
+    }
+
+    /**
+     * create a hash index for a transition whose dependent predicates contain equal predicates,
+     * please call it before adding partial matches
+     * @param transition    outgoing transition of the state that binds this buffer
+     */
+    void createIndex(TransitionCondition transition){
+        if(!partialMatchList.isEmpty()){
+            throw new RuntimeException("index should be created before adding partial matches");
+        }
+        String nextVarName = transition.getNextState().getStateName();
+        List<DependentPredicate> keyPredicates = new ArrayList<>(4);
+        List<Integer> positions = new ArrayList<>(4);
+        for(DependentPredicate dp : transition.getDependentPredicateList()){
+            if(!dp.isEqualDependentPredicate()){
+                continue;
+            }
+            String leftVariableName = dp.getLeftVariableName();
+            String rightVariableName = dp.getRightVariableName();
+            if(rightVariableName.equals(nextVarName) && stateNames.contains(leftVariableName)){
+                keyPredicates.add(dp);
+                positions.add(findStateNamePosition(leftVariableName));
+            }else if(leftVariableName.equals(nextVarName) && stateNames.contains(rightVariableName)){
+                keyPredicates.add(dp);
+                positions.add(findStateNamePosition(rightVariableName));
+            }
+        }
+        if(keyPredicates.isEmpty()){
+            return;
+        }
+        indexes.put(transition, new EqualIndex(keyPredicates, positions, nextVarName));
     }
 
     public List<PartialMatch> getPartialMatchList(){
+        if(removedNum > 0){
+            rebuild();
+        }
         return partialMatchList;
     }
 
+    /**
+     * find the partial matches that may join with the event through this transition,
+     * please note that the returned list may contain removed partial matches
+     * @param transition    transition
+     * @param event         event that satisfies independent predicates of this transition
+     * @return              partial match candidates, they still need to check dependent predicates
+     */
+    List<PartialMatch> getCandidates(TransitionCondition transition, Event event){
+        EqualIndex index = indexes.get(transition);
+        if(index == null){
+            return partialMatchList;
+        }
+        return index.probe(event);
+    }
+
     public int findStateNamePosition(String stateName){
         for(int i = 0; i < stateNames.size(); ++i){
             if(stateNames.get(i).equals(stateName)){
@@ -32,8 +104,33 @@ public class PartialMatchBuffer {
         throw new RuntimeException("cannot find stateName: " + stateName);
     }
 
-    public void addPartialMatch(PartialMatch match){
+    /**
+     * add a partial match, its events should be retained and stored in eventBuffer
+     * @param match         partial match
+     * @param eventBuffer   event buffer, we use it to obtain index keys
+     */
+    public void addPartialMatch(PartialMatch match, EventBuffer eventBuffer){
         partialMatchList.add(match);
+        if(startTimeQueue != null){
+            startTimeQueue.add(match);
+        }
+        for(EqualIndex index : indexes.values()){
+            index.insert(match, eventBuffer);
+        }
+    }
+
+    /**
+     * remove a partial match (e.g., SKIP_TILL_NEXT_MATCH) and release its events
+     * notice that this function does not change partialMatchList and indexes, so we can call it in a loop
+     * @param match         partial match in this buffer
+     * @param eventBuffer   event buffer
+     */
+    public void removePartialMatch(PartialMatch match, EventBuffer eventBuffer){
+        if(!match.isRemoved()){
+            match.setRemoved();
+            eventBuffer.release(match.getEventPointers());
+            removedNum++;
+        }
     }
 
     public List<String> getStateNames(){
@@ -41,6 +138,161 @@ public class PartialMatchBuffer {
     }
 
     public int getPartialMatchSize(){
-        return partialMatchList.size();
+        return partialMatchList.size() - removedNum;
+    }
+
+    /**
+     * remove timeout partial matches and release their events
+     * @param timestamp     timestamp of current event
+     * @param window        query window
+     * @param eventBuffer   event buffer
+     */
+    public void removeExpiredMatches(long timestamp, long window, EventBuffer eventBuffer){
+        if(startTimeQueue == null){
+            for(PartialMatch match : partialMatchList){
+                if(timestamp - match.getStartTime() > window){
+                    removePartialMatch(match, eventBuffer);
+                }
+            }
+        }else{
+            while(!startTimeQueue.isEmpty() && timestamp - startTimeQueue.peek().getStartTime() > window){
+                removePartialMatch(startTimeQueue.poll(), eventBuffer);
+            }
+        }
+        // lazy deletion, the cost of rebuilding is amortized by removed matches
+        if(removedNum > partialMatchList.size() - removedNum){
+            rebuild();
+        }
+    }
+
+    // physically delete removed partial matches from list, queue and indexes
+    private void rebuild(){
+        int size = partialMatchList.size();
+        int newSize = 0;
+        for(int i = 0; i < size; ++i){
+            PartialMatch match = partialMatchList.get(i);
+            if(!match.isRemoved()){
+                partialMatchList.set(newSize++, match);
+            }
+        }
+        partialMatchList.subList(newSize, size).clear();
+        removedNum = 0;
+        // timeout matches are polled from queue, consumed matches stay in queue until they timeout
+        if(startTimeQueue != null && startTimeQueue.size() > (newSize << 1)){
+            startTimeQueue.removeIf(PartialMatch::isRemoved);
+        }
+        for(EqualIndex index : indexes.values()){
+            index.removeDeletedMatches();
+        }
+    }
+
+    // remove all partial matches (e.g., full matches have been output) and release their events
+    public void clear(EventBuffer eventBuffer){
+        for(PartialMatch match : partialMatchList){
+            if(!match.isRemoved()){
+                eventBuffer.release(match.getEventPointers());
+            }
+        }
+        partialMatchList.clear();
+        removedNum = 0;
+        if(startTimeQueue != null){
+            startTimeQueue.clear();
+        }
+        for(EqualIndex index : indexes.values()){
+            index.buckets.clear();
+        }
+    }
+
+    /**
+     * hash index for equal dependent predicates of a transition
+     * key of a partial match is getOneSideValue(bufferVarName, value), key of an event is getOneSideValue(nextVarName, value)
+     * if a transition has multiple equal predicates, key is a list of one side values
+     */
+    private static class EqualIndex {
+        private final DependentPredicate[] keyPredicates;
+        private final String[] bufferVarNames;
+        private final int[] positions;                  // positions of buffered variables in a partial match
+        private final String nextVarName;
+        private final HashMap<Object, List<PartialMatch>> buckets;
+
+        EqualIndex(List<DependentPredicate> keyPredicates, List<Integer> positions, String nextVarName){
+            this.keyPredicates = keyPredicates.toArray(new DependentPredicate[0]);
+            this.nextVarName = nextVarName;
+            this.positions = new int[positions.size()];
+            bufferVarNames = new String[positions.size()];
+            for(int i = 0; i < this.keyPredicates.length; ++i){
+                this.positions[i] = positions.get(i);
+                DependentPredicate dp = this.keyPredicates[i];
+                bufferVarNames[i] = dp.getRightVariableName().equals(nextVarName) ? dp.getLeftVariableName() : dp.getRightVariableName();
+            }
+            buckets = new HashMap<>(1024);
+        }
+
+        void insert(PartialMatch match, EventBuffer eventBuffer){
+            Object[] values = new Object[keyPredicates.length];
+            for(int i = 0; i < keyPredicates.length; ++i){
+                Event event = eventBuffer.getEvent(match.getPointer(positions[i]));
+                String columnName = keyPredicates[i].getAttributeName();
+                DataType dataType = event.getDataType(columnName);
+                values[i] = normalize(keyPredicates[i].getOneSideValue(bufferVarNames[i], event.getAttributeValue(columnName), dataType));
+            }
+            buckets.computeIfAbsent(getKey(values), k -> new ArrayList<>(4)).add(match);
+        }
+
+        List<PartialMatch> probe(Event event){
+            Object[] values = new Object[keyPredicates.length];
+            for(int i = 0; i < keyPredicates.length; ++i){
+                String columnName = keyPredicates[i].getAttributeName();
+                DataType dataType = event.getDataType(columnName);
+                values[i] = normalize(keyPredicates[i].getOneSideValue(nextVarName, event.getAttributeValue(columnName), dataType));
+            }
+            Object key = getKey(values);
+            List<PartialMatch> bucket = buckets.get(key);
+            if(bucket == null){
+                return Collections.emptyList();
+            }
+            // delete removed partial matches in this bucket
+            int size = bucket.size();
+            int newSize = 0;
+            for(int i = 0; i < size; ++i){
+                PartialMatch match = bucket.get(i);
+                if(!match.isRemoved()){
+                    bucket.set(newSize++, match);
+                }
+            }
+            if(newSize == 0){
+                buckets.remove(key);
+                return Collections.emptyList();
+            }
+            bucket.subList(newSize, size).clear();
+            return bucket;
+        }
+
+        void removeDeletedMatches(){
+            Iterator<List<PartialMatch>> it = buckets.values().iterator();
+            while(it.hasNext()){
+                List<PartialMatch> bucket = it.next();
+                bucket.removeIf(PartialMatch::isRemoved);
+                if(bucket.isEmpty()){
+                    it.remove();
+                }
+            }
+        }
+
+        private static Object getKey(Object[] values){
+            return values.length == 1 ? values[0] : Arrays.asList(values);
+        }
+
+        // alignedCheck uses ==, so 0.0 and -0.0 should have same key
+        // NaN has a key, but alignedCheck will filter it
+        private static Object normalize(Object value){
+            if(value instanceof Double && (Double) value == 0){
+                return 0.0;
+            }
+            if(value instanceof Float && (Float) value == 0){
+                return 0.0f;
+            }
+            return value;
+        }
     }
 }
@@ -51,6 +51,13 @@ public class State {
 
     public void bindBuffer(PartialMatchBuffer buffer){
         this.partialMatchBuffer = buffer;
+        // full matches do not timeout and final state does not have transitions
+        if(!isFinal){
+            buffer.enableExpiry();
+            for(TransitionCondition transition : transitionConditions){
+                buffer.createIndex(transition);
+            }
+        }
     }
 
     /**
@@ -78,12 +85,8 @@ public class State {
                 // otherwise, we need to check dependent predicate
                 if(isStart){
                     // if this state is start state, then we generate a partial match
-                    long startTime = timestamp;
-                    long endTime = startTime;
-                    List<Integer> eventPointers = new ArrayList<>(8);
-                    eventPointers.add(eventPointer);
-                    // generate a partial match
-                    PartialMatch match = new PartialMatch(startTime, endTime, eventPointers);
+                    PartialMatch match = PartialMatch.create(timestamp, eventPointer);
+                    eventBuffer.retain(eventPointer);
                     // add the partial match to match buffer
                     PartialMatchBuffer nextMatchBuffer =  nextState.getPartialMatchBuffer();
                     if(nextMatchBuffer == null){
@@ -93,24 +96,20 @@ public class State {
                         nextMatchBuffer = new PartialMatchBuffer(stateNames);
                         nextState.bindBuffer(nextMatchBuffer);
                     }
-                    nextMatchBuffer.addPartialMatch(match);
+                    nextMatchBuffer.addPartialMatch(match, eventBuffer);
                     hasTransition = true;
                 }
                 else{
-                    List<PartialMatch> curPartialMatches = partialMatchBuffer.getPartialMatchList();
-
-                    Iterator<PartialMatch> it = curPartialMatches.iterator();
-                    // loop
-                    while(it.hasNext()){
-                        PartialMatch curMatch = it.next();
-                        long matchStartTime = curMatch.getStartTime();
-                        boolean timeout = timestamp - matchStartTime > window;
-                        // firstly, we check time window whether timeout
-                        // secondly, we check dependent predicate
-                        if(timeout){
-                            it.remove();
-                        }
-                        else{
+                    // firstly, we remove timeout partial matches
+                    // secondly, we only check dependent predicates for the partial matches that have same equal keys
+                    partialMatchBuffer.removeExpiredMatches(timestamp, window, eventBuffer);
+                    List<PartialMatch> curPartialMatches = partialMatchBuffer.getCandidates(transition, event);
+
+                    int size = curPartialMatches.size();
+                    // loop, we cannot use iterator because removed partial matches are only marked
+                    for(int i = 0; i < size; ++i){
+                        PartialMatch curMatch = curPartialMatches.get(i);
+                        if(!curMatch.isRemoved()){
                             boolean satisfyAllDP = true;
                             for(DependentPredicate dp : transition.getDependentPredicateList()){
                                 String columnName = dp.getAttributeName();
@@ -143,19 +142,17 @@ public class State {
                             }
 
                             if(satisfyAllDP){
+                                // create a match and add it to next buffer, new match retains its events
+                                PartialMatch match = curMatch.extend(timestamp, eventPointer);
+                                eventBuffer.retain(match.getEventPointers());
                                 // selection strategy
                                 if(strategy == SelectionStrategy.SKIP_TILL_NEXT_MATCH){
                                     // once can match then this partial match cannot match others events
-                                    it.remove();
+                                    partialMatchBuffer.removePartialMatch(curMatch, eventBuffer);
                                 }else if(strategy == SelectionStrategy.STRICT_CONTIGUOUS){
                                     // to support STRICT_CONTIGUOUS strategy, we need add event sequence attribute
                                     System.out.println("We do not support this match strategy");
                                 }
-                                // create a match and add it to next buffer
-                                List<Integer> newEventPointers = new ArrayList<>();
-                                newEventPointers.addAll(curMatch.getEventPointers());
-                                newEventPointers.add(eventPointer);
-                                PartialMatch match = new PartialMatch(curMatch.getStartTime(), timestamp, newEventPointers);
 
                                 PartialMatchBuffer nextBuffer = nextState.getPartialMatchBuffer();
 
@@ -166,7 +163,7 @@ public class State {
                                     nextBuffer = new PartialMatchBuffer(stateNames);
                                     nextState.bindBuffer(nextBuffer);
                                 }
-                                nextBuffer.addPartialMatch(match);
+                                nextBuffer.addPartialMatch(match, eventBuffer);
                                 hasTransition = true;
                             }
                         }
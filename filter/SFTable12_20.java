@@ -118,6 +118,33 @@ public class SFTable12_20 {
                 hasValue32Bits(bitSet[pos2] & mask, tag) || hasValue32Bits(bitSet[pos2 + 1] & mask, tag);
     }
 
+    /**
+     * obtain interval markers of a fingerprint in two buckets (OR of all slots that have this fingerprint)
+     * for a key k in window, findTag(i1, i2, tag(fp, k)) == ((getIntervalMarker(i1, i2, fp) & marker(k)) != 0)
+     * @param i1    bucket index
+     * @param i2    alternative bucket index
+     * @param fp    fingerprint
+     * @return      interval marker (20 bits), 0 means this window does not exist
+     */
+    public long getIntervalMarker(int i1, int i2, long fp) {
+        int pos1 = i1 << 1;
+        int pos2 = i2 << 1;
+        return getIntervalMarker(bitSet[pos1], fp) | getIntervalMarker(bitSet[pos1 + 1], fp) |
+                getIntervalMarker(bitSet[pos2], fp) | getIntervalMarker(bitSet[pos2 + 1], fp);
+    }
+
+    // a long value has two slots
+    private static long getIntervalMarker(long v, long fp) {
+        long marker = 0;
+        if (((v >>> 20) & 0xfff) == fp) {
+            marker |= v & 0xfffff;
+        }
+        if ((v >>> 52) == fp) {
+            marker |= (v >>> 32) & 0xfffff;
+        }
+        return marker;
+    }
+
     private static long hasZero32Bits(long x){
         // Similar value used in: https://github.com/efficient/cuckoofilter/blob/master/src/bitsutil.h
         return (((x)-0x0000_0001_0000_0001L) & (~(x)) & 0x8000_0000_8000_0000L);
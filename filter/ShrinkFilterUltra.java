@@ -3,6 +3,8 @@ package filter;
 import hasher.QuickHash;
 
 import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * advantages compared with shrink filter:
@@ -18,6 +20,8 @@ public class ShrinkFilterUltra {
     // to achieve a high load factor, we enlarge MAX_KICK_OUT to 550
     static final int MAX_KICK_OUT = 550;
     private static final double LOAD_FACTOR = 0.955;
+    // number of timestamps that are hashed together in queryBatch
+    private static final int BATCH_SIZE = 64;
     private SFTable12_20 table;
     private int bucketNum;
 
@@ -75,6 +79,126 @@ public class ShrinkFilterUltra {
         }
     }
 
+    /**
+     * builder that allows multiple threads to insert time intervals at the same time,
+     * like ConcurrentCuckooFilter, we use striped bucket locks (SegmentedBucketLocker):
+     * finding fingerprint and inserting into bucket i1/i2 are done while holding both bucket locks (and kick read lock),
+     * kicking out holds kick write lock, i.e., kicks are serialized and no thread can see the table while a tag is in flight
+     * notice that findFingerprint/updateRange/rebuild only use the first slot that has the fingerprint,
+     * so a window id must not be stored in two slots, that is why we check fingerprint again before kicking
+     * kicks are rare when load factor is not high, thus serializing them does not limit scalability
+     */
+    public static class ConcurrentBuilder {
+        private final ShrinkFilterUltra filter;
+        private final SegmentedBucketLocker bucketLocks;
+        private final ReentrantReadWriteLock kickLock;
+        private volatile boolean full;
+
+        public ConcurrentBuilder(long maxKeys) {
+            filter = new Builder(maxKeys).build();
+            bucketLocks = new SegmentedBucketLocker(filter.bucketNum);
+            kickLock = new ReentrantReadWriteLock();
+            full = false;
+        }
+
+        /**
+         * thread-safe version of ShrinkFilterUltra.insert
+         * @param startTs - start timestamp
+         * @param endTs - end timestamp
+         * @param window - query window
+         * @return - true if insert successfully
+         */
+        public boolean insert(long startTs, long endTs, long window) {
+            long key = startTs / window;
+            long[] intervalMarkers = getIntervalMarkers(startTs, endTs, window);
+            int len = intervalMarkers.length;
+
+            int fpLen = 12;
+            int rightShift = 32;
+            for (int i = 0; i < len; i++) {
+                long hashCode = QuickHash.hash64(key + i);
+                int bucketIndex = (int) ((hashCode >> rightShift) & (filter.bucketNum - 1));
+                long fp = hashCode >>> (64 - fpLen);
+                int altBucketIndex = filter.altIndex(bucketIndex, fp);
+                long tag = (fp << 20) | intervalMarkers[i];
+                if (!put(bucketIndex, altBucketIndex, fp, tag)) {
+                    full = true;
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean put(int bucketIndex, int altBucketIndex, long fp, long tag) {
+            SFTable12_20 table = filter.table;
+            kickLock.readLock().lock();
+            bucketLocks.lockBucketsWrite(bucketIndex, altBucketIndex);
+            try {
+                // same window id may be inserted by different threads, thus we have to merge markers
+                int[] bucketIdxAndSlotIdx = table.findFingerprint(bucketIndex, altBucketIndex, fp);
+                if (bucketIdxAndSlotIdx[0] != -1) {
+                    return table.insertToBucket(bucketIdxAndSlotIdx[0], bucketIdxAndSlotIdx[1], tag);
+                }
+                if (table.insertToBucket(bucketIndex, tag) || table.insertToBucket(altBucketIndex, tag)) {
+                    return true;
+                }
+            } finally {
+                bucketLocks.unlockBucketsWrite(bucketIndex, altBucketIndex);
+                kickLock.readLock().unlock();
+            }
+
+            // we need to kick, other threads are blocked until the kick chain finishes
+            kickLock.writeLock().lock();
+            try {
+                // another thread may have inserted same window id (or freed a slot) after we released bucket locks
+                int[] bucketIdxAndSlotIdx = table.findFingerprint(bucketIndex, altBucketIndex, fp);
+                if (bucketIdxAndSlotIdx[0] != -1) {
+                    return table.insertToBucket(bucketIdxAndSlotIdx[0], bucketIdxAndSlotIdx[1], tag);
+                }
+                if (table.insertToBucket(bucketIndex, tag) || table.insertToBucket(altBucketIndex, tag)) {
+                    return true;
+                }
+                SFVictim victim = new SFVictim(bucketIndex, altBucketIndex, tag);
+                for (int kickNum = 0; kickNum < MAX_KICK_OUT; kickNum++) {
+                    if (randomSwap(victim)) {
+                        return true;
+                    }
+                }
+                return false;
+            } finally {
+                kickLock.writeLock().unlock();
+            }
+        }
+
+        // caller holds kick write lock, so we do not need bucket locks
+        private boolean randomSwap(SFVictim victim) {
+            SFTable12_20 table = filter.table;
+            // always choose alt bucket index
+            int bucketIndex = victim.getAltBucketIndex();
+            long replacedTag = table.swapRandomTagInBucket(bucketIndex, victim.getTag());
+
+            int altBucketIndex = filter.altIndex(bucketIndex, replacedTag >> 20);
+            if (table.insertToBucket(altBucketIndex, replacedTag)) {
+                return true;
+            }
+            // update victim
+            victim.setBucketIndex(bucketIndex);
+            victim.setAltBucketIndex(altBucketIndex);
+            victim.setTag(replacedTag);
+            return false;
+        }
+
+        // true if an insertion failed, i.e., the filter should be considered full
+        public boolean isFull() {
+            return full;
+        }
+
+        // please call this function after all insertion threads have finished (e.g., join)
+        public ShrinkFilterUltra build() {
+            return filter;
+        }
+    }
+
     static class SFVictim {
         private int bucketIndex;
         private int altBucketIndex;
@@ -295,6 +419,86 @@ public class ShrinkFilterUltra {
         return table.findTag(bucketIndex, altBucketIndex, tag);
     }
 
+    /**
+     * batch version of query function, out.get(i) is true if timestamps[i] passes the filter
+     * we do not use jdk.incubator.vector because we compile with java 8, instead we split a batch into two loops:
+     * (1) hash timestamps and compute bucket positions and tags, this loop has no branch, JIT can unroll it
+     * (2) probe buckets, findTag compares 4 slots with SWAR, and the loads of different timestamps are independent
+     * @param timestamps    timestamps
+     * @param num           number of timestamps (prefix of array)
+     * @param window        query window
+     * @param out           query results, bit i corresponds to timestamps[i]
+     */
+    public void queryBatch(long[] timestamps, int num, long window, BitSet out) {
+        int fpLen = 12;
+        int rightShift = 32;
+        int[] bucketIndexes = new int[BATCH_SIZE];
+        int[] altBucketIndexes = new int[BATCH_SIZE];
+        long[] queryTags = new long[BATCH_SIZE];
+
+        for (int start = 0; start < num; start += BATCH_SIZE) {
+            int len = Math.min(BATCH_SIZE, num - start);
+            for (int i = 0; i < len; i++) {
+                long ts = timestamps[start + i];
+                long windowId = ts / window;
+                long hashCode = QuickHash.hash64(windowId);
+                long fp = hashCode >>> (64 - fpLen);
+                int bucketIndex = (int) ((hashCode >> rightShift) & (bucketNum - 1));
+                bucketIndexes[i] = bucketIndex;
+                altBucketIndexes[i] = altIndex(bucketIndex, fp);
+                int ptr = (int) ((ts - windowId * window) * 20.0 / window);
+                queryTags[i] = tags[ptr] | (fp << 20);
+            }
+            for (int i = 0; i < len; i++) {
+                if (table.findTag(bucketIndexes[i], altBucketIndexes[i], queryTags[i])) {
+                    out.set(start + i);
+                }
+            }
+        }
+    }
+
+    public void queryBatch(long[] timestamps, long window, BitSet out) {
+        queryBatch(timestamps, timestamps.length, window, out);
+    }
+
+    /**
+     * streaming query for sorted timestamps, out.get(i) is true if timestamps[i] passes the filter
+     * consecutive timestamps often have same window id, thus we only hash and probe buckets once for a window,
+     * then remaining timestamps of this window only need to test their marker bits
+     * if timestamps are not sorted, results are still correct, but we will probe buckets more times
+     * @param timestamps    sorted timestamps
+     * @param num           number of timestamps (prefix of array)
+     * @param window        query window
+     * @param out           query results, bit i corresponds to timestamps[i]
+     */
+    public void querySorted(long[] timestamps, int num, long window, BitSet out) {
+        int fpLen = 12;
+        int rightShift = 32;
+        long previousWindowId = Long.MIN_VALUE;
+        long intervalMarker = 0;
+        for (int i = 0; i < num; i++) {
+            long ts = timestamps[i];
+            long windowId = ts / window;
+            if (windowId != previousWindowId) {
+                long hashCode = QuickHash.hash64(windowId);
+                long fp = hashCode >>> (64 - fpLen);
+                int bucketIndex = (int) ((hashCode >> rightShift) & (bucketNum - 1));
+                intervalMarker = table.getIntervalMarker(bucketIndex, altIndex(bucketIndex, fp), fp);
+                previousWindowId = windowId;
+            }
+            if (intervalMarker != 0) {
+                int ptr = (int) ((ts - windowId * window) * 20.0 / window);
+                if ((intervalMarker & tags[ptr]) != 0) {
+                    out.set(i);
+                }
+            }
+        }
+    }
+
+    public void querySorted(long[] timestamps, long window, BitSet out) {
+        querySorted(timestamps, timestamps.length, window, out);
+    }
+
     // before updating range, we call this function to check window id
     // if return {-1,-1}, then we do not update
     // return bucket position and slot position
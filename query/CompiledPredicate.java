@@ -0,0 +1,192 @@
+package query;
+
+import store.ColumnInfo;
+import store.DataType;
+
+import java.nio.ByteBuffer;
+
+/**
+ * independent predicate compiled at query start (see IndependentPredicate.compile)
+ * it reads the column value from page buffer at a fixed offset and compares it with a primitive constant,
+ * thus FullScan does not box values or allocate byte arrays for each row
+ */
+public abstract class CompiledPredicate {
+    final int startPos;                 // column start position in a record
+    final ComparedOperator operator;
+
+    CompiledPredicate(int startPos, ComparedOperator operator){
+        this.startPos = startPos;
+        this.operator = operator;
+    }
+
+    /**
+     * @param buffer        page buffer
+     * @param recordPos     start position of a record in this buffer
+     * @return              true if this record satisfies predicate
+     */
+    public abstract boolean check(ByteBuffer buffer, int recordPos);
+
+    static CompiledPredicate compile(ComparedOperator operator, String constantValue, ColumnInfo columnInfo){
+        int startPos = columnInfo.getStartPos();
+        DataType dataType = columnInfo.getDataType();
+        switch (dataType){
+            case INT:
+                return new IntPredicate(startPos, operator, Integer.parseInt(constantValue));
+            case LONG:
+                return new LongPredicate(startPos, operator, Long.parseLong(constantValue));
+            case FLOAT:
+                return new FloatPredicate(startPos, operator, Float.parseFloat(constantValue));
+            case DOUBLE:
+                return new DoublePredicate(startPos, operator, Double.parseDouble(constantValue));
+            case VARCHAR:
+                // constantValue format: 'XXXXX'
+                String str = constantValue.substring(1, constantValue.length() - 1);
+                if(columnInfo.getDictionary() != null){
+                    // dictionary column stores int code, a value that does not appear in store has code -1
+                    return new IntPredicate(startPos, operator, columnInfo.getDictionary().lookup(str));
+                }
+                byte[] bytes = str.getBytes();
+                return new VarcharPredicate(startPos, operator, bytes, columnInfo.getOffset());
+            default:
+                throw new RuntimeException("Unsupported data type: " + dataType);
+        }
+    }
+
+    static final class IntPredicate extends CompiledPredicate {
+        private final int rightValue;
+
+        IntPredicate(int startPos, ComparedOperator operator, int rightValue){
+            super(startPos, operator);
+            this.rightValue = rightValue;
+        }
+
+        @Override
+        public boolean check(ByteBuffer buffer, int recordPos){
+            int leftValue = buffer.getInt(recordPos + startPos);
+            switch (operator){
+                case NEQ:
+                    return leftValue != rightValue;
+                case LT:
+                    return leftValue < rightValue;
+                case LE:
+                    return leftValue <= rightValue;
+                case GT:
+                    return leftValue > rightValue;
+                case GE:
+                    return leftValue >= rightValue;
+                default:    // case EQ:
+                    return leftValue == rightValue;
+            }
+        }
+    }
+
+    static final class LongPredicate extends CompiledPredicate {
+        private final long rightValue;
+
+        LongPredicate(int startPos, ComparedOperator operator, long rightValue){
+            super(startPos, operator);
+            this.rightValue = rightValue;
+        }
+
+        @Override
+        public boolean check(ByteBuffer buffer, int recordPos){
+            long leftValue = buffer.getLong(recordPos + startPos);
+            switch (operator){
+                case NEQ:
+                    return leftValue != rightValue;
+                case LT:
+                    return leftValue < rightValue;
+                case LE:
+                    return leftValue <= rightValue;
+                case GT:
+                    return leftValue > rightValue;
+                case GE:
+                    return leftValue >= rightValue;
+                default:    // case EQ:
+                    return leftValue == rightValue;
+            }
+        }
+    }
+
+    static final class FloatPredicate extends CompiledPredicate {
+        private final float rightValue;
+
+        FloatPredicate(int startPos, ComparedOperator operator, float rightValue){
+            super(startPos, operator);
+            this.rightValue = rightValue;
+        }
+
+        @Override
+        public boolean check(ByteBuffer buffer, int recordPos){
+            float leftValue = buffer.getFloat(recordPos + startPos);
+            switch (operator){
+                case NEQ:
+                    return leftValue != rightValue;
+                case LT:
+                    return leftValue < rightValue;
+                case LE:
+                    return leftValue <= rightValue;
+                case GT:
+                    return leftValue > rightValue;
+                case GE:
+                    return leftValue >= rightValue;
+                default:    // case EQ:
+                    return leftValue == rightValue;
+            }
+        }
+    }
+
+    static final class DoublePredicate extends CompiledPredicate {
+        private final double rightValue;
+
+        DoublePredicate(int startPos, ComparedOperator operator, double rightValue){
+            super(startPos, operator);
+            this.rightValue = rightValue;
+        }
+
+        @Override
+        public boolean check(ByteBuffer buffer, int recordPos){
+            double leftValue = buffer.getDouble(recordPos + startPos);
+            switch (operator){
+                case NEQ:
+                    return leftValue != rightValue;
+                case LT:
+                    return leftValue < rightValue;
+                case LE:
+                    return leftValue <= rightValue;
+                case GT:
+                    return leftValue > rightValue;
+                case GE:
+                    return leftValue >= rightValue;
+                default:    // case EQ:
+                    return leftValue == rightValue;
+            }
+        }
+    }
+
+    // VARCHAR only supports '=' and '!=', we compare raw bytes of fixed length char array
+    static final class VarcharPredicate extends CompiledPredicate {
+        private final byte[] rightValue;
+        private final int columnLen;
+
+        VarcharPredicate(int startPos, ComparedOperator operator, byte[] rightValue, int columnLen){
+            super(startPos, operator);
+            this.rightValue = rightValue;
+            this.columnLen = columnLen;
+        }
+
+        @Override
+        public boolean check(ByteBuffer buffer, int recordPos){
+            boolean equal = rightValue.length <= columnLen;
+            int pos = recordPos + startPos;
+            for(int i = 0; equal && i < rightValue.length; i++){
+                equal = buffer.get(pos + i) == rightValue[i];
+            }
+            // string without end mark when it fills the whole column
+            if(equal && rightValue.length < columnLen){
+                equal = buffer.get(pos + rightValue.length) == 0;
+            }
+            return operator == ComparedOperator.NEQ ? !equal : equal;
+        }
+    }
+}
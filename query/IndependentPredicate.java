@@ -1,5 +1,6 @@
 package query;
 
+import store.ColumnInfo;
 import store.DataType;
 import event.Event;
 
@@ -76,20 +77,7 @@ public class IndependentPredicate {
         // to get more fast process performance, we first get its double value
         if(dataType != DataType.VARCHAR){
             if(!hasConvert){
-                switch (dataType){
-                    case INT:
-                        rightValue = Integer.parseInt(constantValue);
-                        break;
-                    case FLOAT:
-                        rightValue = Float.parseFloat(constantValue);
-                        break;
-                    case LONG:
-                        rightValue = Long.parseLong(constantValue);
-                        break;
-                    default: // case DOUBLE:
-                        rightValue = Double.parseDouble(constantValue);
-                }
-                hasConvert = true;
+                convertRightValue(dataType);
             }
 
             double leftValue;
@@ -123,21 +111,82 @@ public class IndependentPredicate {
                     return leftValue == rightValue;
             }
         }else{
-            // String type only support equal operation
+            // String type only support equal and not equal operation
             // here we use below codes to accelerate
             byte[] leftValue = (byte[]) obj;
             int len = constantValue.length();
-            for(int i = 1; i < len - 1; i++){
+            boolean equal = len - 2 <= leftValue.length;
+            for(int i = 1; equal && i < len - 1; i++){
                 // constantValue format: 'XXXXX'
-                if(constantValue.charAt(i) != leftValue[i - 1]){
-                    return false;
-                }
+                equal = constantValue.charAt(i) == leftValue[i - 1];
             }
-            return leftValue[len - 1] == 0;
+            // string without end mark when it fills the whole column
+            if(equal && len - 2 < leftValue.length){
+                equal = leftValue[len - 2] == 0;
+            }
+            return operator == ComparedOperator.NEQ ? !equal : equal;
         }
         return false;
     }
 
+    private void convertRightValue(DataType dataType){
+        switch (dataType){
+            case INT:
+                rightValue = Integer.parseInt(constantValue);
+                break;
+            case FLOAT:
+                rightValue = Float.parseFloat(constantValue);
+                break;
+            case LONG:
+                rightValue = Long.parseLong(constantValue);
+                break;
+            default: // case DOUBLE:
+                rightValue = Double.parseDouble(constantValue);
+        }
+        hasConvert = true;
+    }
+
+    /**
+     * check whether some value in [minValue, maxValue] can satisfy this predicate,
+     * it is used by zone map to skip pages
+     * @param minValue      minimum value of a page
+     * @param maxValue      maximum value of a page
+     * @param dataType      data type (VARCHAR always returns true)
+     * @return              false means no value in this range satisfies this predicate
+     */
+    public boolean mayHold(double minValue, double maxValue, DataType dataType){
+        if(dataType == DataType.VARCHAR){
+            return true;
+        }
+        if(!hasConvert){
+            convertRightValue(dataType);
+        }
+        switch (operator){
+            case NEQ:
+                return !(minValue == maxValue && minValue == rightValue);
+            case LT:
+                return minValue < rightValue;
+            case LE:
+                return minValue <= rightValue;
+            case GT:
+                return maxValue > rightValue;
+            case GE:
+                return maxValue >= rightValue;
+            case EQ:
+                return minValue <= rightValue && rightValue <= maxValue;
+        }
+        return true;
+    }
+
+    /**
+     * compile this predicate into a primitive evaluator that reads value from page buffer directly
+     * @param columnInfo    column information of attribute
+     * @return              compiled predicate
+     */
+    public CompiledPredicate compile(ColumnInfo columnInfo){
+        return CompiledPredicate.compile(operator, constantValue, columnInfo);
+    }
+
     public String getVariableName(){
         return variableName;
     }
@@ -146,6 +195,14 @@ public class IndependentPredicate {
         return attributeName;
     }
 
+    public ComparedOperator getOperator(){
+        return operator;
+    }
+
+    public String getConstantValue(){
+        return constantValue;
+    }
+
     // version 11-23: batch process
     //public void batchCheck(byte[] content, int readSize, int recordLen, )
 
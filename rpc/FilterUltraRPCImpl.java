@@ -21,6 +21,8 @@ public class FilterUltraRPCImpl implements FilterUltraRPC.Iface{
     public Map<String, Integer> initial(String tableName, Map<String, List<String>> ipStrMap) {
         long startTime = System.currentTimeMillis();
 
+        // this handler keeps the state of a query in its fields, i.e., it serves one query at a time,
+        // so we do not use SharedScan (there is no concurrent request to share a scan)
         FullScan fullscan = new FullScan(tableName);
         cache = fullscan.scanBasedVarName(ipStrMap);
         hasFilteredVarNames = new ArrayList<>(8);
@@ -2,7 +2,8 @@ package rpc;
 
 import org.apache.thrift.TException;
 import rpc.iface.PushDownRPC;
-import store.FullScan;
+import store.EventCache;
+import store.SharedScan;
 
 import java.nio.ByteBuffer;
 import java.util.List;
@@ -16,23 +17,14 @@ public class PushDownRPCImpl implements PushDownRPC.Iface {
     @Override
     public ByteBuffer initial(String tableName, Map<String, List<String>> ipMap) throws TException {
         long startTime = System.currentTimeMillis();
-        FullScan fullscan = new FullScan(tableName);
-        List<byte[]> filteredRecords = fullscan.scan(ipMap);
+        // concurrent push-down requests on the same table share one scan: a request on an idle table scans at once,
+        // requests that arrive while the table is being scanned are queued and then served by one scan (see SharedScan)
+        EventCache cache = SharedScan.scanBasedVarName(tableName, ipMap);
+        ByteBuffer buffer = cache.getRecords();
 
         long endTime = System.currentTimeMillis();
         System.out.println("scan cost: " + (endTime - startTime) + "ms");
 
-        if(filteredRecords.isEmpty()) {
-            return null;
-        }else{
-            int size = filteredRecords.size();
-            int dataLen = filteredRecords.get(0).length;
-            ByteBuffer buffer = ByteBuffer.allocate(size * dataLen);
-            for (byte[] record : filteredRecords) {
-                buffer.put(record);
-            }
-            buffer.flip();
-            return buffer;
-        }
+        return buffer.hasRemaining() ? buffer : null;
     }
 }
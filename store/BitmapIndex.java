@@ -0,0 +1,212 @@
+package store;
+
+import org.roaringbitmap.RoaringBitmap;
+import query.ComparedOperator;
+import query.IndependentPredicate;
+import utils.Pair;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * bitmap secondary index for low cardinality columns (declared by indexColumns in json file)
+ * for each value of an index column, we use a roaring bitmap to record the pages that contain this value
+ * index column should be INT or dictionary encoded VARCHAR, thus the key is an int value (or dictionary code)
+ * it is built at ingest time and stored next to the store file: event_store/STORENAME.index
+ * FullScan intersects the bitmaps of equal predicates and only reads these pages
+ * file format: [columnNum (int)] then each column: [column id (int)][value number (int)][(value (int), bitmap) * value number]
+ */
+public class BitmapIndex {
+    private final int[] columnIds;                          // ids of index columns in schema
+    private final List<Map<Integer, RoaringBitmap>> bitmaps;    // bitmaps.get(i): value -> pages of i-th index column
+    private final int[] lastValues;                         // value and page of last record, used to avoid repeated add
+    private final int[] lastPages;
+
+    public BitmapIndex(EventSchema schema){
+        List<String> indexColumns = schema.getIndexColumns();
+        List<String> columnNames = schema.getColumnNames();
+        columnIds = new int[indexColumns.size()];
+        bitmaps = new ArrayList<>(indexColumns.size());
+        for(int i = 0; i < columnIds.length; i++){
+            String columnName = indexColumns.get(i);
+            ColumnInfo columnInfo = schema.getColumnInfo(columnName);
+            if(columnInfo == null || !(columnInfo.getDataType() == DataType.INT || columnInfo.getDictionary() != null)){
+                throw new RuntimeException("Index column '" + columnName + "' should be an INT column or a dictionary column");
+            }
+            columnIds[i] = columnNames.indexOf(columnName);
+            bitmaps.add(new HashMap<>(64));
+        }
+        lastValues = new int[columnIds.length];
+        lastPages = new int[columnIds.length];
+        Arrays.fill(lastPages, -1);
+    }
+
+    private BitmapIndex(int[] columnIds, List<Map<Integer, RoaringBitmap>> bitmaps){
+        this.columnIds = columnIds;
+        this.bitmaps = bitmaps;
+        lastValues = new int[columnIds.length];
+        lastPages = new int[columnIds.length];
+        Arrays.fill(lastPages, -1);
+    }
+
+    /**
+     * create an empty index for ingestion
+     * @param schema        storage schema
+     * @param storeName     store name
+     * @return              bitmap index, null if this table does not declare index columns
+     */
+    public static BitmapIndex create(EventSchema schema, String storeName){
+        if(schema.getIndexColumns() == null || schema.getIndexColumns().isEmpty()){
+            // old index file does not match new store
+            File file = getIndexFile(storeName);
+            if(file.exists()){
+                System.out.println("index file: '" + file.getName() + "' is out of date, we will delete this file, flag: " + file.delete());
+            }
+            return null;
+        }
+        return new BitmapIndex(schema);
+    }
+
+    public static File getIndexFile(String storeName){
+        String storePath = System.getProperty("user.dir") + File.separator + "event_store";
+        return new File(storePath + File.separator + storeName.toUpperCase() + ".index");
+    }
+
+    /**
+     * add a record into index
+     * @param page          page id of this record
+     * @param records       byte array that stores this record
+     * @param recordPos     start position of record
+     * @param schema        storage schema
+     */
+    public void update(int page, byte[] records, int recordPos, EventSchema schema){
+        ByteBuffer buffer = ByteBuffer.wrap(records);
+        List<String> columnNames = schema.getColumnNames();
+        for(int i = 0; i < columnIds.length; i++){
+            int value = buffer.getInt(recordPos + schema.getColumnInfo(columnNames.get(columnIds[i])).getStartPos());
+            // records in a page often have same value
+            if(lastPages[i] == page && lastValues[i] == value){
+                continue;
+            }
+            lastPages[i] = page;
+            lastValues[i] = value;
+            bitmaps.get(i).computeIfAbsent(value, k -> new RoaringBitmap()).add(page);
+        }
+    }
+
+    /**
+     * find the pages that may contain records satisfying all independent predicates of a variable
+     * only equal predicates on index columns are used
+     * @param ips       independent predicates of a variable
+     * @param schema    storage schema
+     * @return          candidate pages, null means index cannot be used (we need to read all pages)
+     */
+    public RoaringBitmap getCandidatePages(List<Pair<IndependentPredicate, ColumnInfo>> ips, EventSchema schema){
+        RoaringBitmap pages = null;
+        List<String> columnNames = schema.getColumnNames();
+        for(Pair<IndependentPredicate, ColumnInfo> pair : ips){
+            IndependentPredicate ip = pair.getKey();
+            if(ip.getOperator() != ComparedOperator.EQ){
+                continue;
+            }
+            for(int i = 0; i < columnIds.length; i++){
+                if(columnNames.get(columnIds[i]).equals(ip.getAttributeName())){
+                    RoaringBitmap valuePages = bitmaps.get(i).get(getKey(ip.getConstantValue(), pair.getValue()));
+                    if(valuePages == null){
+                        // no page contains this value
+                        return new RoaringBitmap();
+                    }
+                    pages = pages == null ? valuePages.clone() : RoaringBitmap.and(pages, valuePages);
+                    break;
+                }
+            }
+        }
+        return pages;
+    }
+
+    // constant value of predicate -> int key
+    private static int getKey(String constantValue, ColumnInfo columnInfo){
+        if(columnInfo.getDictionary() != null){
+            // constantValue format: 'XXXXX'
+            return columnInfo.getDictionary().lookup(constantValue.substring(1, constantValue.length() - 1));
+        }
+        return Integer.parseInt(constantValue);
+    }
+
+    /**
+     * merge candidate pages of all variables, a page is read if any variable may be satisfied in it
+     * @param index     bitmap index, can be null
+     * @param ipMap     independent predicates
+     * @param schema    storage schema
+     * @return          candidate pages, null means all pages should be read
+     */
+    public static RoaringBitmap getCandidatePages(BitmapIndex index, Map<String, List<Pair<IndependentPredicate, ColumnInfo>>> ipMap, EventSchema schema){
+        if(index == null){
+            return null;
+        }
+        List<RoaringBitmap> varPages = new ArrayList<>(ipMap.size());
+        for(List<Pair<IndependentPredicate, ColumnInfo>> ips : ipMap.values()){
+            RoaringBitmap pages = index.getCandidatePages(ips, schema);
+            if(pages == null){
+                return null;
+            }
+            varPages.add(pages);
+        }
+        return RoaringBitmap.or(varPages.iterator());
+    }
+
+    public void store(String storeName){
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getIndexFile(storeName), false)))){
+            out.writeInt(columnIds.length);
+            for(int i = 0; i < columnIds.length; i++){
+                out.writeInt(columnIds[i]);
+                out.writeInt(bitmaps.get(i).size());
+                for(Map.Entry<Integer, RoaringBitmap> entry : bitmaps.get(i).entrySet()){
+                    out.writeInt(entry.getKey());
+                    entry.getValue().runOptimize();
+                    entry.getValue().serialize(out);
+                }
+            }
+        }catch (IOException e){
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * read bitmap index from disk
+     * @param storeName     store name
+     * @return              bitmap index, if this store does not have index then return null
+     */
+    public static BitmapIndex load(String storeName){
+        File file = getIndexFile(storeName);
+        if(!file.exists()){
+            return null;
+        }
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))){
+            int columnNum = in.readInt();
+            int[] columnIds = new int[columnNum];
+            List<Map<Integer, RoaringBitmap>> bitmaps = new ArrayList<>(columnNum);
+            for(int i = 0; i < columnNum; i++){
+                columnIds[i] = in.readInt();
+                int valueNum = in.readInt();
+                Map<Integer, RoaringBitmap> valueBitmaps = new HashMap<>(valueNum << 1);
+                for(int j = 0; j < valueNum; j++){
+                    int value = in.readInt();
+                    RoaringBitmap bitmap = new RoaringBitmap();
+                    bitmap.deserialize(in);
+                    valueBitmaps.put(value, bitmap);
+                }
+                bitmaps.add(valueBitmaps);
+            }
+            return new BitmapIndex(columnIds, bitmaps);
+        }catch (IOException e){
+            System.out.println(e.getMessage());
+        }
+        return null;
+    }
+}
@@ -0,0 +1,351 @@
+package store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * buffer pool caches pages of store files (segments), it is shared by all scans of this storage node
+ * a page is identified by (file id, page id in this file), the pool has poolPageNum frames,
+ * when all frames are used, we use CLOCK algorithm to choose a frame that is not pinned
+ * usage: fileId = pool.register(file); frame = pool.pin(fileId, page); ... read frame ...; pool.unpin(frame);
+ * please do not keep a frame after unpin, because it may be replaced by another page
+ * a page is read without holding the lock of pool, so that scan threads can read different pages at the same time,
+ * thus a channel is closed by the last reader if the file is invalidated during reading
+ * if a page cannot be read, pin throws an exception (also to the threads that wait for this page)
+ */
+public class BufferPool {
+    public static int poolPageNum = 16 * 1024;          // number of frames (64MB if page size is 4KB)
+    private static BufferPool sharedPool = null;
+
+    private final Frame[] frames;
+    private int usedFrameNum;                           // frames[usedFrameNum...] have never been used
+    private int clockHand;
+    private final Map<Long, Frame> pageTable;           // (file id << 32 | page) -> frame
+    private final Map<String, FileEntry> files;         // file path -> file entry
+    private final List<FileEntry> fileEntries;          // file id -> file entry
+    private long hitNum;
+    private long missNum;
+
+    public static class Frame {
+        private final int frameId;
+        private byte[] data;                            // allocated when we first use this frame
+        private ByteBuffer buffer;
+        private int length;                             // valid bytes, the last page of a file may not be full
+        private long key;
+        private int pinCount;
+        private boolean referenced;                     // reference bit of CLOCK
+        private boolean loaded;                         // false when a thread is reading this page
+        private IOException readError;                  // not null if reading this page failed
+
+        Frame(int frameId){
+            this.frameId = frameId;
+            key = -1;
+        }
+
+        public byte[] getData(){
+            return data;
+        }
+
+        public ByteBuffer getBuffer(){
+            return buffer;
+        }
+
+        public int getLength(){
+            return length;
+        }
+    }
+
+    // channel of a file and the number of threads that are reading it
+    private static class ChannelHandle {
+        final FileChannel channel;
+        int readerNum;
+        boolean retired;                                // file has been invalidated, the last reader closes channel
+
+        ChannelHandle(FileChannel channel){
+            this.channel = channel;
+            readerNum = 0;
+            retired = false;
+        }
+    }
+
+    // opened file, if file is modified (e.g., new ingestion), its pages are removed from pool
+    private static class FileEntry {
+        final int fileId;
+        final File file;
+        ChannelHandle channel;
+        long lastModified;
+        long fileSize;
+
+        FileEntry(int fileId, File file){
+            this.fileId = fileId;
+            this.file = file;
+            lastModified = -1;
+            fileSize = -1;
+        }
+    }
+
+    public BufferPool(int capacity){
+        frames = new Frame[capacity];
+        for(int i = 0; i < capacity; i++){
+            frames[i] = new Frame(i);
+        }
+        usedFrameNum = 0;
+        clockHand = 0;
+        pageTable = new HashMap<>(capacity << 1);
+        files = new HashMap<>(64);
+        fileEntries = new ArrayList<>(64);
+        hitNum = 0;
+        missNum = 0;
+    }
+
+    /**
+     * scans and index lookups of this node use the same buffer pool
+     * @return  shared buffer pool, the pool has at least 64 frames, because each scan thread pins a frame
+     */
+    public static synchronized BufferPool getSharedPool(){
+        if(sharedPool == null){
+            sharedPool = new BufferPool(Math.max(poolPageNum, 64));
+        }
+        return sharedPool;
+    }
+
+    /**
+     * register a file before pinning its pages, we call it once per scan
+     * if this file has been modified since last call, we remove its cached pages
+     * @param file  store file (segment)
+     * @return      file id
+     */
+    public synchronized int register(File file){
+        String path = file.getAbsolutePath();
+        FileEntry entry = files.get(path);
+        if(entry == null){
+            entry = new FileEntry(fileEntries.size(), file);
+            files.put(path, entry);
+            fileEntries.add(entry);
+        }
+        if(entry.lastModified != file.lastModified() || entry.fileSize != file.length()){
+            invalidate(entry);
+            entry.lastModified = file.lastModified();
+            entry.fileSize = file.length();
+        }
+        return entry.fileId;
+    }
+
+    /**
+     * same as invalidate(file), but we do nothing if shared pool has not been created
+     * EventStore calls it before deleting a file, then the pool does not keep a deleted file open
+     * @param file  store file (segment)
+     */
+    public static synchronized void invalidateSharedPool(File file){
+        if(sharedPool != null){
+            sharedPool.invalidate(file);
+        }
+    }
+
+    /**
+     * remove all pages of a file, e.g., this file is deleted or rewritten
+     * @param file  store file (segment)
+     */
+    public synchronized void invalidate(File file){
+        FileEntry entry = files.get(file.getAbsolutePath());
+        if(entry != null){
+            invalidate(entry);
+            entry.lastModified = -1;
+            entry.fileSize = -1;
+        }
+    }
+
+    private void invalidate(FileEntry entry){
+        for(int i = 0; i < usedFrameNum; i++){
+            Frame frame = frames[i];
+            if(frame.key != -1 && (int) (frame.key >>> 32) == entry.fileId){
+                // if this frame is pinned, its holder can still read it, but nobody can find it
+                pageTable.remove(frame.key);
+                frame.key = -1;
+            }
+        }
+        if(entry.channel != null){
+            // other threads may be reading this channel, closing it would make their reads fail
+            entry.channel.retired = true;
+            if(entry.channel.readerNum == 0){
+                closeChannel(entry.channel);
+            }
+            entry.channel = null;
+        }
+    }
+
+    private static void closeChannel(ChannelHandle handle){
+        try{
+            handle.channel.close();
+        }catch (IOException e){
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * pin a page, if it is not in pool, we read it from file
+     * @param fileId    file id (see register)
+     * @param page      page id in this file
+     * @return          frame that holds this page
+     * @throws RuntimeException if the page cannot be read, the frame is not pinned in this case
+     */
+    public Frame pin(int fileId, int page){
+        long key = ((long) fileId << 32) | page;
+        Frame frame;
+        ChannelHandle handle;
+        File file;
+        synchronized (this){
+            frame = pageTable.get(key);
+            if(frame != null){
+                hitNum++;
+                frame.pinCount++;
+                frame.referenced = true;
+                // another thread is reading this page
+                while(!frame.loaded){
+                    try{
+                        wait();
+                    }catch (InterruptedException e){
+                        // this thread does not use the frame, so we release its pin
+                        frame.pinCount--;
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException(e.getMessage());
+                    }
+                }
+                if(frame.readError != null){
+                    frame.pinCount--;
+                    throw new RuntimeException("cannot read page " + page + " of file '" + fileEntries.get(fileId).file.getName()
+                            + "': " + frame.readError.getMessage());
+                }
+                return frame;
+            }
+            missNum++;
+            // open the file before we install a frame, if it fails (e.g., the segment has been deleted),
+            // the page table is not changed and other threads do not wait for this page
+            file = fileEntries.get(fileId).file;
+            handle = getChannel(fileEntries.get(fileId));
+            frame = chooseVictim();
+            if(frame.key != -1){
+                pageTable.remove(frame.key);
+            }
+            frame.key = key;
+            frame.pinCount = 1;
+            frame.referenced = true;
+            frame.loaded = false;
+            frame.readError = null;
+            pageTable.put(key, frame);
+            if(frame.data == null){
+                frame.data = new byte[EventStore.pageSize];
+                frame.buffer = ByteBuffer.wrap(frame.data);
+            }
+            handle.readerNum++;
+        }
+
+        // read page without lock
+        int length = 0;
+        IOException error = null;
+        try{
+            ByteBuffer dst = ByteBuffer.wrap(frame.data);
+            long pos = (long) page * EventStore.pageSize;
+            while(dst.hasRemaining()){
+                int read = handle.channel.read(dst, pos + dst.position());
+                if(read == -1){
+                    break;
+                }
+            }
+            length = dst.position();
+        }catch (IOException e){
+            error = e;
+        }
+
+        synchronized (this){
+            handle.readerNum--;
+            if(handle.retired && handle.readerNum == 0){
+                closeChannel(handle);
+            }
+            frame.length = length;
+            frame.loaded = true;
+            frame.readError = error;
+            if(error != null){
+                // the page cannot be found later, so next pin will read it again
+                if(frame.key == key){
+                    pageTable.remove(key);
+                    frame.key = -1;
+                }
+                frame.pinCount--;
+            }
+            notifyAll();
+        }
+        if(error != null){
+            throw new RuntimeException("cannot read page " + page + " of file '" + file.getName() + "': " + error.getMessage());
+        }
+        return frame;
+    }
+
+    public synchronized void unpin(Frame frame){
+        if(frame.pinCount <= 0){
+            throw new RuntimeException("frame " + frame.frameId + " is not pinned");
+        }
+        frame.pinCount--;
+    }
+
+    // CLOCK: unused frame first, then skip pinned frames and clear reference bits until we find a frame
+    private Frame chooseVictim(){
+        if(usedFrameNum < frames.length){
+            return frames[usedFrameNum++];
+        }
+        // after two rounds all reference bits are cleared, if we still cannot find a frame, all frames are pinned
+        for(int i = 0; i < (frames.length << 1); i++){
+            Frame frame = frames[clockHand];
+            clockHand = (clockHand + 1) % frames.length;
+            if(frame.pinCount > 0){
+                continue;
+            }
+            if(frame.referenced){
+                frame.referenced = false;
+            }else{
+                return frame;
+            }
+        }
+        throw new RuntimeException("all frames of buffer pool are pinned, please increase poolPageNum");
+    }
+
+    private ChannelHandle getChannel(FileEntry entry){
+        if(entry.channel == null){
+            try{
+                entry.channel = new ChannelHandle(new RandomAccessFile(entry.file, "r").getChannel());
+            }catch (IOException e){
+                throw new RuntimeException(e.getMessage());
+            }
+        }
+        return entry.channel;
+    }
+
+    public synchronized long getHitNum(){
+        return hitNum;
+    }
+
+    public synchronized long getMissNum(){
+        return missNum;
+    }
+
+    public synchronized double getHitRatio(){
+        return hitNum + missNum == 0 ? 0 : (double) hitNum / (hitNum + missNum);
+    }
+
+    public synchronized void resetCounters(){
+        hitNum = 0;
+        missNum = 0;
+    }
+
+    @Override
+    public synchronized String toString(){
+        return "buffer pool: frames " + frames.length + ", used frames " + usedFrameNum + ", hit " + hitNum + ", miss " + missNum;
+    }
+}
@@ -4,11 +4,17 @@ public class ColumnInfo {
     public final int startPos;                    // byte array start position
     public final int offset;                      // storage length
     public final DataType dataType;               // data type
+    public final VarcharDictionary dictionary;    // not null if this VARCHAR column is stored as dictionary code
 
     public ColumnInfo(int startPos, int offset, DataType dataType) {
+        this(startPos, offset, dataType, null);
+    }
+
+    public ColumnInfo(int startPos, int offset, DataType dataType, VarcharDictionary dictionary) {
         this.startPos = startPos;
         this.offset = offset;
         this.dataType = dataType;
+        this.dictionary = dictionary;
     }
 
     public int getStartPos() {
@@ -23,8 +29,12 @@ public class ColumnInfo {
         return dataType;
     }
 
+    public VarcharDictionary getDictionary() {
+        return dictionary;
+    }
+
     @Override
     public String toString() {
-        return "[startPos=" + startPos + ", offset=" + offset + ", " + dataType + "]";
+        return "[startPos=" + startPos + ", offset=" + offset + ", " + dataType + (dictionary == null ? "" : ", dictionary") + "]";
     }
 }
@@ -0,0 +1,249 @@
+package store;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Columnar Storage Class
+ * each column is stored in its own file: event_store/TABLENAME/COLUMNNAME.col
+ * a column file is split into pages, each page = [header: value number (int)][fixed length values]
+ * then a row id can be located in every column file by (rowId / valueNumPerPage, rowId % valueNumPerPage)
+ * compared with EventStore, FullScan only needs to read the columns that appear in predicates
+ * and then materialises the qualifying rows
+ */
+public class ColumnStore {
+    public static final int PAGE_HEADER_SIZE = 4;                   // page header only records value number
+    private final String tableName;
+    private final EventSchema schema;
+    private final File directory;
+    private final List<String> columnNames;
+    private final ByteBuffer[] bufs;                                // byte buffer for writing each column
+    private final FileChannel[] writeChannels;                      // write channels, opened lazily
+    private final Map<String, MappedByteBuffer> readBuffers;        // mapped column files for reading
+
+    public ColumnStore(String tableName, EventSchema schema, boolean deletionFlag){
+        this.tableName = tableName.toUpperCase();
+        this.schema = schema;
+        String storePath = System.getProperty("user.dir") + File.separator + "event_store" + File.separator + this.tableName;
+        directory = new File(storePath);
+        if (!directory.exists()) {
+            boolean isCreated = directory.mkdirs();
+            if (isCreated) {
+                System.out.println("The directory " + storePath + " does not exist, the directory has been successfully created.");
+            } else {
+                throw new RuntimeException("Create the directory " + storePath + " failed.");
+            }
+        }
+
+        columnNames = schema.getColumnNames();
+        int columnNum = columnNames.size();
+        if(deletionFlag){
+            for(String columnName : columnNames){
+                File file = getColumnFile(columnName);
+                if(file.exists()){
+                    System.out.println("file: '"+ file.getName() + "' exists in disk, we will delete this file, flag: " + file.delete());
+                }
+            }
+        }
+
+        bufs = new ByteBuffer[columnNum];
+        for(int i = 0; i < columnNum; i++){
+            bufs[i] = ByteBuffer.allocate(EventStore.pageSize);
+            bufs[i].position(PAGE_HEADER_SIZE);
+        }
+        writeChannels = new FileChannel[columnNum];
+        readBuffers = new HashMap<>(columnNum << 1);
+    }
+
+    /**
+     * check whether a table has column files, please note that format of a table is recorded in SegmentManifest,
+     * this function is only used for old columnar tables that do not have manifest
+     * @param tableName     table name
+     * @return              true if the column directory exists
+     */
+    public static boolean exists(String tableName){
+        String storePath = System.getProperty("user.dir") + File.separator + "event_store" + File.separator + tableName.toUpperCase();
+        File directory = new File(storePath);
+        return directory.isDirectory() && directory.list() != null && directory.list().length > 0;
+    }
+
+    /**
+     * delete all files of a columnar table, it is called before the table is stored in row format
+     * @param tableName     table name
+     */
+    public static void drop(String tableName){
+        String storePath = System.getProperty("user.dir") + File.separator + "event_store" + File.separator + tableName.toUpperCase();
+        File[] oldFiles = new File(storePath).listFiles();
+        if(oldFiles != null){
+            for(File oldFile : oldFiles){
+                System.out.println("file: '"+ oldFile.getName() + "' exists in disk, we will delete this file, flag: " + oldFile.delete());
+            }
+        }
+    }
+
+    // dictionaries of columnar table are stored in its column directory
+    public static File getDictionaryFile(String tableName){
+        String storePath = System.getProperty("user.dir") + File.separator + "event_store" + File.separator + tableName.toUpperCase();
+        return new File(storePath + File.separator + "COLUMNS.dict");
+    }
+
+    public static int getValueNumPerPage(int valueLen){
+        return (EventStore.pageSize - PAGE_HEADER_SIZE) / valueLen;
+    }
+
+    public String getTableName(){
+        return tableName;
+    }
+
+    public File getColumnFile(String columnName){
+        return new File(directory, columnName + ".col");
+    }
+
+    /**
+     * split a fixed length record and append each column value to its column page,
+     * when a column page is full, we flush this page into its column file
+     * @param record    single record (row format)
+     */
+    public final void insertSingleRecord(byte[] record){
+        int columnNum = columnNames.size();
+        for(int i = 0; i < columnNum; i++){
+            ColumnInfo columnInfo = schema.getColumnInfo(columnNames.get(i));
+            ByteBuffer buf = bufs[i];
+            if(buf.remaining() < columnInfo.getOffset()){
+                flushPage(i);
+            }
+            buf.put(record, columnInfo.getStartPos(), columnInfo.getOffset());
+        }
+    }
+
+    // write page header, then append the whole page (4KB) into column file
+    private void flushPage(int columnIdx){
+        ByteBuffer buf = bufs[columnIdx];
+        int valueLen = schema.getColumnInfo(columnNames.get(columnIdx)).getOffset();
+        int valueNum = (buf.position() - PAGE_HEADER_SIZE) / valueLen;
+        buf.putInt(0, valueNum);
+        // the last page may not be full, but it doesn't matter
+        buf.position(0);
+        buf.limit(EventStore.pageSize);
+        try{
+            if(writeChannels[columnIdx] == null){
+                writeChannels[columnIdx] = new FileOutputStream(getColumnFile(columnNames.get(columnIdx)), true).getChannel();
+            }
+            while(buf.hasRemaining()){
+                writeChannels[columnIdx].write(buf);
+            }
+        }catch (IOException e){
+            e.printStackTrace();
+        }
+        // clear the buffer, note that we have to zero the unused bytes
+        buf.clear();
+        Arrays.fill(buf.array(), (byte) 0);
+        buf.position(PAGE_HEADER_SIZE);
+    }
+
+    // write all pages that are not empty, then close files
+    public void forceFlush(){
+        int columnNum = columnNames.size();
+        for(int i = 0; i < columnNum; i++){
+            if(bufs[i].position() > PAGE_HEADER_SIZE){
+                flushPage(i);
+            }
+            if(writeChannels[i] != null){
+                try{
+                    writeChannels[i].close();
+                }catch (IOException e){
+                    e.printStackTrace();
+                }
+                writeChannels[i] = null;
+            }
+        }
+    }
+
+    /**
+     * map a column file into memory (read only), note that a column file should be less than 2GB
+     * @param columnName    column name
+     * @return              mapped byte buffer
+     */
+    public final MappedByteBuffer getColumnBuffer(String columnName){
+        MappedByteBuffer buffer = readBuffers.get(columnName);
+        if(buffer == null){
+            File file = getColumnFile(columnName);
+            long fileSize = file.length();
+            if(fileSize > Integer.MAX_VALUE){
+                throw new RuntimeException("column file: '" + file.getName() + "' is too large to map, size: " + fileSize);
+            }
+            try(RandomAccessFile raf = new RandomAccessFile(file, "r")){
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+                readBuffers.put(columnName, buffer);
+            }catch (IOException e){
+                throw new RuntimeException(e.getMessage());
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * all column files have the same number of values,
+     * here we use the last page header of first column to calculate record number
+     * @return  number of stored records
+     */
+    public int getRecordNum(){
+        String columnName = columnNames.get(0);
+        long fileSize = getColumnFile(columnName).length();
+        if(fileSize == 0){
+            return 0;
+        }
+        int pageNum = (int) (fileSize / EventStore.pageSize);
+        int valueNumPerPage = getValueNumPerPage(schema.getColumnInfo(columnName).getOffset());
+        MappedByteBuffer buffer = getColumnBuffer(columnName);
+        int lastPageValueNum = buffer.getInt((pageNum - 1) * EventStore.pageSize);
+        return (pageNum - 1) * valueNumPerPage + lastPageValueNum;
+    }
+
+    /**
+     * obtain position of a value in the column file
+     * @param rowId             row id
+     * @param valueNumPerPage   number of values per page
+     * @param valueLen          value length
+     * @return                  position in the mapped buffer
+     */
+    public static int getValuePos(int rowId, int valueNumPerPage, int valueLen){
+        int page = rowId / valueNumPerPage;
+        int slot = rowId - page * valueNumPerPage;
+        return page * EventStore.pageSize + PAGE_HEADER_SIZE + slot * valueLen;
+    }
+
+    /**
+     * assemble a row format record from all column files
+     * @param rowId     row id
+     * @return          fixed length record, same as the record stored in EventStore
+     */
+    public byte[] getRecord(int rowId){
+        byte[] record = new byte[schema.getFixedRecordLen()];
+        getRecord(rowId, record);
+        return record;
+    }
+
+    /**
+     * same as getRecord(rowId), but writes the record into a given byte array
+     * @param rowId     row id
+     * @param record    byte array whose length is fixed record length
+     */
+    public void getRecord(int rowId, byte[] record){
+        for(String columnName : columnNames){
+            ColumnInfo columnInfo = schema.getColumnInfo(columnName);
+            int valueLen = columnInfo.getOffset();
+            int pos = getValuePos(rowId, getValueNumPerPage(valueLen), valueLen);
+            // duplicate() so that we do not change the position of the shared mapped buffer
+            ByteBuffer buffer = getColumnBuffer(columnName).duplicate();
+            buffer.position(pos);
+            buffer.get(record, columnInfo.getStartPos(), valueLen);
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package store;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * compressed page format (optional, see EventSchema.isCompressed)
+ * a page still has EventStore.pageSize bytes, but it stores columns rather than rows:
+ * [record number (int)][column block * columnNum][zero padding]
+ * INT column and dictionary code (VARCHAR): frame of reference, [min (int)][bit width (byte)][bit-packed (value - min)]
+ * LONG column (e.g., EVENTTIME): [first value (long)][zigzag varint of (value - previous value) * (recordNum - 1)]
+ * other columns (FLOAT, DOUBLE, VARCHAR without dictionary): raw values
+ * writer appends records until the next record cannot fit, reader decodes a page into row format records,
+ * so that predicates and EventCache still see fixed length records
+ */
+public class CompressedPage {
+    public static final int PAGE_HEADER_SIZE = 4;
+    private static final int RAW = 0;
+    private static final int FOR = 1;
+    private static final int DELTA = 2;
+
+    private final int recordLen;
+    private final int[] encodings;          // encoding of each column
+    private final int[] startPoses;         // start position of each column in a record
+    private final int[] lens;               // length of each column
+    // builder state
+    private final byte[] records;           // records that have been added into this page (row format)
+    private final ByteBuffer recordBuffer;
+    private int recordNum;
+    private final int[] minValues;          // FOR: minimum value
+    private final int[] maxValues;          // FOR: maximum value
+    private final long[] lastValues;        // DELTA: last value
+    private final int[] deltaSizes;         // DELTA: bytes of varint deltas
+
+    public CompressedPage(EventSchema schema){
+        recordLen = schema.getFixedRecordLen();
+        List<String> columnNames = schema.getColumnNames();
+        int columnNum = columnNames.size();
+        encodings = new int[columnNum];
+        startPoses = new int[columnNum];
+        lens = new int[columnNum];
+        for(int i = 0; i < columnNum; i++){
+            ColumnInfo columnInfo = schema.getColumnInfo(columnNames.get(i));
+            startPoses[i] = columnInfo.getStartPos();
+            lens[i] = columnInfo.getOffset();
+            encodings[i] = getEncoding(columnInfo);
+        }
+        records = new byte[getMaxRecordNum() * recordLen];
+        recordBuffer = ByteBuffer.wrap(records);
+        minValues = new int[columnNum];
+        maxValues = new int[columnNum];
+        lastValues = new long[columnNum];
+        deltaSizes = new int[columnNum];
+        clear();
+    }
+
+    private static int getEncoding(ColumnInfo columnInfo){
+        switch (columnInfo.getDataType()){
+            case INT:
+                return FOR;
+            case LONG:
+                return DELTA;
+            case VARCHAR:
+                return columnInfo.getDictionary() == null ? RAW : FOR;
+            default:
+                return RAW;
+        }
+    }
+
+    // a record needs at least one bit, thus a page cannot store more than pageSize records
+    public static int getMaxRecordNum(){
+        return EventStore.pageSize;
+    }
+
+    public int getRecordNum(){
+        return recordNum;
+    }
+
+    public byte[] getRecords(){
+        return records;
+    }
+
+    public void clear(){
+        recordNum = 0;
+    }
+
+    private static int bitWidth(int minValue, int maxValue){
+        long range = (long) maxValue - minValue;
+        return 64 - Long.numberOfLeadingZeros(range);
+    }
+
+    private static long zigzag(long value){
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static int varintSize(long value){
+        int size = 1;
+        while((value & ~0x7FL) != 0){
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * try to add a record into this page
+     * @param src       source bytes
+     * @param srcPos    record start position
+     * @return          false if this page cannot hold this record (page is not changed)
+     */
+    public boolean add(byte[] src, int srcPos){
+        if(recordNum == getMaxRecordNum()){
+            return false;
+        }
+        ByteBuffer srcBuffer = ByteBuffer.wrap(src);
+        int newRecordNum = recordNum + 1;
+        int newSize = PAGE_HEADER_SIZE;
+        for(int i = 0; i < encodings.length; i++){
+            int pos = srcPos + startPoses[i];
+            switch (encodings[i]){
+                case FOR:
+                    int value = srcBuffer.getInt(pos);
+                    int minValue = recordNum == 0 ? value : Math.min(minValues[i], value);
+                    int maxValue = recordNum == 0 ? value : Math.max(maxValues[i], value);
+                    newSize += 5 + (int) (((long) newRecordNum * bitWidth(minValue, maxValue) + 7) >>> 3);
+                    break;
+                case DELTA:
+                    newSize += 8 + (recordNum == 0 ? 0 : deltaSizes[i] + varintSize(zigzag(srcBuffer.getLong(pos) - lastValues[i])));
+                    break;
+                default:
+                    newSize += newRecordNum * lens[i];
+            }
+        }
+        if(newSize > EventStore.pageSize){
+            return false;
+        }
+
+        // update statistics
+        for(int i = 0; i < encodings.length; i++){
+            int pos = srcPos + startPoses[i];
+            if(encodings[i] == FOR){
+                int value = srcBuffer.getInt(pos);
+                minValues[i] = recordNum == 0 ? value : Math.min(minValues[i], value);
+                maxValues[i] = recordNum == 0 ? value : Math.max(maxValues[i], value);
+            }else if(encodings[i] == DELTA){
+                long value = srcBuffer.getLong(pos);
+                deltaSizes[i] = recordNum == 0 ? 0 : deltaSizes[i] + varintSize(zigzag(value - lastValues[i]));
+                lastValues[i] = value;
+            }
+        }
+        System.arraycopy(src, srcPos, records, recordNum * recordLen, recordLen);
+        recordNum = newRecordNum;
+        return true;
+    }
+
+    /**
+     * encode added records into a page, then clear this page
+     * @param page  destination buffer, we write pageSize bytes from its position
+     */
+    public void encode(ByteBuffer page){
+        int pageStart = page.position();
+        page.putInt(recordNum);
+        for(int i = 0; i < encodings.length; i++){
+            int pos = startPoses[i];
+            switch (encodings[i]){
+                case FOR:
+                    int minValue = minValues[i];
+                    int width = bitWidth(minValue, maxValues[i]);
+                    page.putInt(minValue);
+                    page.put((byte) width);
+                    // little-endian bit order, values are written from low bits
+                    long bits = 0;
+                    int bitNum = 0;
+                    for(int j = 0; j < recordNum; j++){
+                        long delta = (long) recordBuffer.getInt(j * recordLen + pos) - minValue;
+                        bits |= delta << bitNum;
+                        bitNum += width;
+                        // less than 8 bits are left, so bits never overflow (width <= 32)
+                        while(bitNum >= 8){
+                            page.put((byte) bits);
+                            bits >>>= 8;
+                            bitNum -= 8;
+                        }
+                    }
+                    if(bitNum > 0){
+                        page.put((byte) bits);
+                    }
+                    break;
+                case DELTA:
+                    long lastValue = recordBuffer.getLong(pos);
+                    page.putLong(lastValue);
+                    for(int j = 1; j < recordNum; j++){
+                        long value = recordBuffer.getLong(j * recordLen + pos);
+                        long zigzagValue = zigzag(value - lastValue);
+                        while((zigzagValue & ~0x7FL) != 0){
+                            page.put((byte) ((zigzagValue & 0x7F) | 0x80));
+                            zigzagValue >>>= 7;
+                        }
+                        page.put((byte) zigzagValue);
+                        lastValue = value;
+                    }
+                    break;
+                default:
+                    for(int j = 0; j < recordNum; j++){
+                        page.put(records, j * recordLen + pos, lens[i]);
+                    }
+            }
+        }
+        // padding zero
+        while(page.position() < pageStart + EventStore.pageSize){
+            page.put((byte) 0);
+        }
+        clear();
+    }
+
+    /**
+     * decode a page into row format records
+     * @param page      page buffer
+     * @param pagePos   page start position
+     * @param rows      output records, its length should be at least getMaxRecordNum() * recordLen
+     * @return          number of records
+     */
+    public int decode(ByteBuffer page, int pagePos, byte[] rows){
+        ByteBuffer rowBuffer = ByteBuffer.wrap(rows);
+        int num = page.getInt(pagePos);
+        int pos = pagePos + PAGE_HEADER_SIZE;
+        for(int i = 0; i < encodings.length; i++){
+            int startPos = startPoses[i];
+            switch (encodings[i]){
+                case FOR:
+                    int minValue = page.getInt(pos);
+                    int width = page.get(pos + 4);
+                    pos += 5;
+                    if(width == 0){
+                        for(int j = 0; j < num; j++){
+                            rowBuffer.putInt(j * recordLen + startPos, minValue);
+                        }
+                        break;
+                    }
+                    long mask = (1L << width) - 1;
+                    long bits = 0;
+                    int bitNum = 0;
+                    for(int j = 0; j < num; j++){
+                        while(bitNum < width){
+                            bits |= (page.get(pos++) & 0xFFL) << bitNum;
+                            bitNum += 8;
+                        }
+                        rowBuffer.putInt(j * recordLen + startPos, (int) (minValue + (bits & mask)));
+                        bits >>>= width;
+                        bitNum -= width;
+                    }
+                    break;
+                case DELTA:
+                    long value = page.getLong(pos);
+                    pos += 8;
+                    if(num > 0){
+                        rowBuffer.putLong(startPos, value);
+                    }
+                    for(int j = 1; j < num; j++){
+                        long zigzagValue = 0;
+                        int shift = 0;
+                        byte b;
+                        do{
+                            b = page.get(pos++);
+                            zigzagValue |= (b & 0x7FL) << shift;
+                            shift += 7;
+                        }while(b < 0);
+                        value += (zigzagValue >>> 1) ^ -(zigzagValue & 1);
+                        rowBuffer.putLong(j * recordLen + startPos, value);
+                    }
+                    break;
+                default:
+                    int len = lens[i];
+                    for(int j = 0; j < num; j++){
+                        int rowPos = j * recordLen + startPos;
+                        if(page.hasArray()){
+                            System.arraycopy(page.array(), page.arrayOffset() + pos, rows, rowPos, len);
+                            pos += len;
+                        }else{
+                            for(int k = 0; k < len; k++){
+                                rows[rowPos + k] = page.get(pos++);
+                            }
+                        }
+                    }
+            }
+        }
+        return num;
+    }
+}
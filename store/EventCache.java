@@ -4,7 +4,8 @@ import filter.LockFreeBloomFilter;
 import filter.ShrinkFilter;
 import filter.ShrinkFilterUltra;
 import filter.UpdatedMarkers;
-//import org.roaringbitmap.RoaringBitmap;
+import org.roaringbitmap.FastAggregation;
+import org.roaringbitmap.RoaringBitmap;
 import org.roaringbitmap.longlong.Roaring64Bitmap;
 import query.DependentPredicate;
 import query.EqualDependentPredicate;
@@ -25,63 +26,90 @@ public class EventCache {
     //private int cacheRecordNum;
     private final int EQUAL_DIVISION = 20;
 
-    // below two variables may occupy large space, we plan to compress these data
-    // if the number of records is big, maybe occur out of memory
-    List<byte[]> records;
-    // if out-of-memory we need to compress pointers
-    Map<String, List<Integer>> varPointers;         // here we can save space
+    // records are stored in an off-heap arena, pointers are primitive int arrays (sorted)
+    // thus we do not keep millions of small objects in heap
+    RecordArena records;
+    Map<String, int[]> varPointers;
+    // start position of timestamp column, -1 means schema does not have 'EVENTTIME' column
+    private final int timestampPos;
 
-    public EventCache(EventSchema schema, List<byte[]> records, Map<String, List<Integer>> varPointers) {
+    public EventCache(EventSchema schema, RecordArena records, Map<String, int[]> varPointers) {
         this.schema = schema;
-        //this.cacheRecordNum = cacheRecordNum;
         this.records = records;
         this.varPointers = varPointers;
+        ColumnInfo timestampInfo = schema.getColumnInfo("EVENTTIME");
+        timestampPos = timestampInfo == null ? -1 : timestampInfo.getStartPos();
     }
 
-    // this function is used for updating cache
-    public List<Integer> getMergedPointers(){
-        List<Integer> mergedPointers = new ArrayList<>(8);
-        for(List<Integer> pointers : varPointers.values()){
-            mergedPointers = merge(mergedPointers, pointers);
+    public EventCache(EventSchema schema, List<byte[]> records, Map<String, List<Integer>> varPointers) {
+        this(schema, new RecordArena(schema.getFixedRecordLen(), records.size()), new HashMap<>(varPointers.size() << 1));
+        for(byte[] record : records){
+            this.records.add(record, 0);
+        }
+        for(Map.Entry<String, List<Integer>> entry : varPointers.entrySet()){
+            List<Integer> pointers = entry.getValue();
+            int[] pointerArray = new int[pointers.size()];
+            for(int i = 0; i < pointerArray.length; i++){
+                pointerArray[i] = pointers.get(i);
+            }
+            this.varPointers.put(entry.getKey(), pointerArray);
+        }
+    }
+
+    // read timestamp from arena directly, we do not need to copy the record
+    private long getTimestamp(int pointer){
+        if(timestampPos == -1){
+            throw new RuntimeException("table '" + schema.getTableName() + "' does not have EVENTTIME column");
         }
-        return mergedPointers;
+        return records.getLong(pointer, timestampPos);
+    }
+
+    // union of all variables' pointers, pointers of each variable are sorted, thus we can use addN
+    public RoaringBitmap getMergedBitmap(){
+        RoaringBitmap[] bitmaps = new RoaringBitmap[varPointers.size()];
+        int i = 0;
+        for(int[] pointers : varPointers.values()){
+            bitmaps[i] = new RoaringBitmap();
+            bitmaps[i].addN(pointers, 0, pointers.length);
+            i++;
+        }
+        return FastAggregation.or(bitmaps);
+    }
+
+    // read timestamps of a pointer array, then we can query shrink filter ultra in batch
+    private long[] getTimestamps(int[] pointers){
+        long[] timestamps = new long[pointers.length];
+        for(int i = 0; i < pointers.length; i++){
+            timestamps[i] = getTimestamp(pointers[i]);
+        }
+        return timestamps;
+    }
+
+    // this function is used for updating cache
+    public int[] getMergedPointers(){
+        return getMergedBitmap().toArray();
     }
 
     // when replay/time intervals shrink, many events cannot involve in matching
     // in other words, the size of varPointers become small
     // to reduce memory overhead, we need to delete these events
     public double flushCache(){
-        List<Integer> mergedPointers = getMergedPointers();
-
-        // here we use deep copy rather than shallow copy, which leads to long update cost
-        int size = mergedPointers.size();
-        int dataLen = schema.getFixedRecordLen();
-
-        byte[][] data = new byte[size][dataLen];
-        List<byte[]> updatedRecords = new ArrayList<>(size);
-        // old pointers -> new pointers
-        Map<Integer, Integer> pointerMap = new HashMap<>(size << 1);
-        int count = 0;
-        for(Integer pointer : mergedPointers){
-            byte[] record = records.get(pointer);
-            // here we use
-            byte[] copiedRecord = data[count];
-            System.arraycopy(record, 0, copiedRecord, 0, dataLen);
-            updatedRecords.add(copiedRecord);
-            pointerMap.put(pointer, count);
-            count++;
-        }
+        RoaringBitmap mergedBitmap = getMergedBitmap();
+        int[] mergedPointers = mergedBitmap.toArray();
+        int size = mergedPointers.length;
         int oldSize = records.size();
-        records = updatedRecords;
 
-        for(String key : varPointers.keySet()){
-            List<Integer> oldPointers = varPointers.get(key);
-            int pointerNum = oldPointers.size();
-            List<Integer> newPointers = new ArrayList<>(pointerNum);
-            for(Integer pointer : oldPointers){
-                newPointers.add(pointerMap.get(pointer));
+        // merged pointers are sorted, thus we can compact records in place
+        for(int newPointer = 0; newPointer < size; newPointer++){
+            records.move(mergedPointers[newPointer], newPointer);
+        }
+        records.truncate(size);
+
+        // old pointers -> new pointers, new pointer is the rank of old pointer in merged bitmap
+        for(int[] pointers : varPointers.values()){
+            for(int i = 0; i < pointers.length; i++){
+                pointers[i] = mergedBitmap.rank(pointers[i]) - 1;
             }
-            varPointers.put(key, newPointers);
         }
 
         return (size + 0.0) / oldSize;
@@ -94,9 +122,9 @@ public class EventCache {
      * @return          events that satisfy the variable's constraints
      */
     public List<byte[]> getVarRecords(String varName){
-        List<Integer> pointers = varPointers.get(varName);
-        List<byte[]> ans = new ArrayList<>(pointers.size());
-        for(Integer pointer : pointers){
+        int[] pointers = varPointers.get(varName);
+        List<byte[]> ans = new ArrayList<>(pointers.length);
+        for(int pointer : pointers){
             ans.add(records.get(pointer));
         }
         return ans;
@@ -105,15 +133,15 @@ public class EventCache {
     // debug
     public void display(){
         for(String key : varPointers.keySet()){
-            List<Integer> pointers = varPointers.get(key);
-            System.out.println("key: " + key + ", pointers size: " + pointers.size());
+            int[] pointers = varPointers.get(key);
+            System.out.println("key: " + key + ", pointers size: " + pointers.length);
         }
     }
 
     public Map<String, Integer> getCardinality(){
         Map<String, Integer> cardinalityMap = new HashMap<>(varPointers.size() << 1);
         for(String varName : varPointers.keySet()){
-            cardinalityMap.put(varName, varPointers.get(varName).size());
+            cardinalityMap.put(varName, varPointers.get(varName).length);
         }
         return cardinalityMap;
     }
@@ -121,16 +149,15 @@ public class EventCache {
     // we choose the variable with the lowest selectivity to generate replay interval
     public ByteBuffer generateReplayIntervals(String varName, long window, int headTailMarker){
         // 0: head variable, 1: tail variable, 2: middle variable
-        List<Integer> pointers = varPointers.get(varName);
-        ReplayIntervals intervals = new ReplayIntervals(pointers.size());
+        int[] pointers = varPointers.get(varName);
+        ReplayIntervals intervals = new ReplayIntervals(pointers.length);
 
         // headTailMarker only has three cases: 0 (leftmost), 1  (rightmost), 2 (middle)
         long leftOffset = (headTailMarker == 0) ? 0 : -window;
         long rightOffset = (headTailMarker == 1) ? 0 : window;
 
-        for(Integer pointer : pointers){
-            byte[] record = records.get(pointer);
-            long ts = schema.getTimestamp(record);
+        for(int pointer : pointers){
+            long ts = getTimestamp(pointer);
             intervals.insert(ts + leftOffset, ts + rightOffset);
         }
 
@@ -139,7 +166,7 @@ public class EventCache {
 
     public ByteBuffer generateIntervalBitmap(String varName, long window, int headTailMarker) {
         // 0: head variable, 1: tail variable, 2: middle variable
-        List<Integer> pointers = varPointers.get(varName);
+        int[] pointers = varPointers.get(varName);
         //RoaringBitmap bitmap = new RoaringBitmap();
         Roaring64Bitmap bitmap = new Roaring64Bitmap();
         // headTailMarker only has three cases: 0 (leftmost), 1  (rightmost), 2 (middle)
@@ -148,9 +175,8 @@ public class EventCache {
 
         // equal division
 
-        for(Integer pointer : pointers){
-            byte[] record = records.get(pointer);
-            long ts = schema.getTimestamp(record);
+        for(int pointer : pointers){
+            long ts = getTimestamp(pointer);
             long convertedStart = (ts + leftOffset) * EQUAL_DIVISION / window;
             long convertedEnd = (ts + rightOffset) * EQUAL_DIVISION / window;
             //bitmap.add(convertedStart, convertedEnd + 1);
@@ -179,10 +205,10 @@ public class EventCache {
         double DEFAULT_FPR = 0.001;
         LockFreeBloomFilter bf = new LockFreeBloomFilter(DEFAULT_FPR, eventNum);
 
-        List<Integer> pointers = varPointers.get(varName);
-        System.out.println("bf-varName: " + varName + " estimate eventNum: " + eventNum + " real num: " + pointers.size());
+        int[] pointers = varPointers.get(varName);
+        System.out.println("bf-varName: " + varName + " estimate eventNum: " + eventNum + " real num: " + pointers.length);
 
-        for(Integer pointer : pointers){
+        for(int pointer : pointers){
             byte[] record = records.get(pointer);
             long timestamp = schema.getTimestamp(record);
             StringBuilder stringBuilder = new StringBuilder(16);
@@ -200,35 +226,34 @@ public class EventCache {
     }
 
     public void simpleFilter(String varName, long window, ShrinkFilter shrinkFilter){
-        List<Integer> pointers = varPointers.get(varName);
+        int[] pointers = varPointers.get(varName);
 
-        System.out.println("begin simple filter, variable name: " +varName + " num: " + pointers.size());
+        System.out.println("begin simple filter, variable name: " +varName + " num: " + pointers.length);
 
-        List<Integer> updatedPointers = new ArrayList<>(pointers.size());
+        int[] updatedPointers = new int[pointers.length];
+        int updatedNum = 0;
         for(int pointer : pointers){
-            byte[] record = records.get(pointer);
-            long ts = schema.getTimestamp(record);
+            long ts = getTimestamp(pointer);
             if(shrinkFilter.query(ts, window)){
-                updatedPointers.add(pointer);
+                updatedPointers[updatedNum++] = pointer;
             }
         }
-        System.out.println("end simple filter, variable name: " + varName + " num: " + pointers.size());
-        varPointers.put(varName, updatedPointers);
+        System.out.println("end simple filter, variable name: " + varName + " num: " + pointers.length);
+        varPointers.put(varName, Arrays.copyOf(updatedPointers, updatedNum));
     }
 
     public void simpleFilter(String varName, long window, ShrinkFilterUltra shrinkFilterUltra){
-        List<Integer> pointers = varPointers.get(varName);
+        int[] pointers = varPointers.get(varName);
         //System.out.println("begin simple filter, variable name: " +varName + " num: " + pointers.size());
-        List<Integer> updatedPointers = new ArrayList<>(pointers.size());
-        for(int pointer : pointers){
-            byte[] record = records.get(pointer);
-            long ts = schema.getTimestamp(record);
-            if(shrinkFilterUltra.query(ts, window)){
-                updatedPointers.add(pointer);
-            }
+        int[] updatedPointers = new int[pointers.length];
+        int updatedNum = 0;
+        BitSet results = new BitSet(pointers.length);
+        shrinkFilterUltra.querySorted(getTimestamps(pointers), window, results);
+        for(int i = results.nextSetBit(0); i >= 0; i = results.nextSetBit(i + 1)){
+            updatedPointers[updatedNum++] = pointers[i];
         }
-        System.out.println("end simple filter, variable name: " + varName + " num: " + pointers.size());
-        varPointers.put(varName, updatedPointers);
+        System.out.println("end simple filter, variable name: " + varName + " num: " + pointers.length);
+        varPointers.put(varName, Arrays.copyOf(updatedPointers, updatedNum));
     }
 
     public ByteBuffer updatePointers(String varName, long window, int headTailMarker, ShrinkFilter shrinkFilter){
@@ -236,15 +261,15 @@ public class EventCache {
         long leftOffset = (headTailMarker == 0) ? 0 : -window;
         long rightOffset = (headTailMarker == 1) ? 0 : window;
 
-        List<Integer> pointers = varPointers.get(varName);
-        List<Integer> updatedPointers = new ArrayList<>(pointers.size());
+        int[] pointers = varPointers.get(varName);
+        int[] updatedPointers = new int[pointers.length];
+        int updatedNum = 0;
 
         // code optimization: delay update range, because if many event has same timestamp update has a high cost
         ReplayIntervals updateIntervals = new ReplayIntervals(256);
         long previousNonExistWindowId = -1;
         for(int pointer : pointers){
-            byte[] record = records.get(pointer);
-            long ts = schema.getTimestamp(record);
+            long ts = getTimestamp(pointer);
             long curWindowId = ts/ window;
 
             // 这个地方只对事件有序有作用哈
@@ -253,7 +278,7 @@ public class EventCache {
                 if(shrinkFilter.queryWindowId(curWindowId)){
                     if(shrinkFilter.query(ts, window)){
                         updateIntervals.insert(ts + leftOffset, ts + rightOffset);
-                        updatedPointers.add(pointer);
+                        updatedPointers[updatedNum++] = pointer;
                     }
                 }else{
                     previousNonExistWindowId = curWindowId;
@@ -272,7 +297,7 @@ public class EventCache {
             shrinkFilter.updateRange(interval.getStartTime(), interval.getEndTime(), window);
         }
 
-        varPointers.put(varName, updatedPointers);
+        varPointers.put(varName, Arrays.copyOf(updatedPointers, updatedNum));
         return shrinkFilter.serialize();
     }
 
@@ -282,22 +307,23 @@ public class EventCache {
         long leftOffset = (headTailMarker == 0) ? 0 : -window;
         long rightOffset = (headTailMarker == 1) ? 0 : window;
 
-        List<Integer> pointers = varPointers.get(varName);
+        int[] pointers = varPointers.get(varName);
         // suppose we can filter quarter of events
-        List<Integer> updatedPointers = new ArrayList<>(pointers.size() >> 2);
+        int[] updatedPointers = new int[pointers.length];
+        int updatedNum = 0;
         ReplayIntervals intervals = new ReplayIntervals(2048);
         UpdatedMarkers updatedMarkers = new UpdatedMarkers(shrinkFilterUltra.getBucketNum());
 
         // when events arrival in ordered, we can speedup filtering
         int filteredEventNum = 0;
-        for(int pointer : pointers){
-            byte[] record = records.get(pointer);
-            long ts = schema.getTimestamp(record);
-            if(shrinkFilterUltra.query(ts, window)){
-                filteredEventNum++;
-                updatedPointers.add(pointer);
-                intervals.insert(ts + leftOffset, ts + rightOffset);
-            }
+        long[] timestamps = getTimestamps(pointers);
+        BitSet results = new BitSet(pointers.length);
+        shrinkFilterUltra.querySorted(timestamps, window, results);
+        for(int i = results.nextSetBit(0); i >= 0; i = results.nextSetBit(i + 1)){
+            long ts = timestamps[i];
+            filteredEventNum++;
+            updatedPointers[updatedNum++] = pointers[i];
+            intervals.insert(ts + leftOffset, ts + rightOffset);
         }
 
         // if events are ordered, we can use replay intervals to accelerate update
@@ -316,7 +342,7 @@ public class EventCache {
                 }
             }
         }
-        varPointers.put(varName, updatedPointers);
+        varPointers.put(varName, Arrays.copyOf(updatedPointers, updatedNum));
         return updatedMarkers.serialize(filteredEventNum);
     }
 
@@ -340,13 +366,15 @@ public class EventCache {
         long leftOffset = (headTailMarker == 0) ? 0 : -window;
         long rightOffset = (headTailMarker == 1) ? 0 : window;
 
-        List<Integer> pointers = varPointers.get(varName);
+        int[] pointers = varPointers.get(varName);
 
-        List<Integer> updatedPointers = new ArrayList<>(pointers.size());
+        int[] updatedPointers = new int[pointers.length];
+        int updatedNum = 0;
         for(int pointer : pointers){
-            byte[] record = records.get(pointer);
-            long ts = schema.getTimestamp(record);
+            long ts = getTimestamp(pointer);
             if(shrinkFilter.query(ts, window)){
+                // only copy the record when we need to check dependent predicates
+                byte[] record = records.get(pointer);
                 // check all related dependent predicates
                 // for example, varName: c, previousVariables: a, b
                 // dependent predicates: a.A1 = c.A1 + 5 AND b.A2 * 2 = c.A2
@@ -381,11 +409,11 @@ public class EventCache {
 
                 if(satisfied){
                     shrinkFilter.updateRange(ts + leftOffset, ts + rightOffset, window);
-                    updatedPointers.add(pointer);
+                    updatedPointers[updatedNum++] = pointer;
                 }
             }
         }
-        varPointers.put(varName, updatedPointers);
+        varPointers.put(varName, Arrays.copyOf(updatedPointers, updatedNum));
         return shrinkFilter.serialize();
     }
 
@@ -395,20 +423,22 @@ public class EventCache {
         long leftOffset = (headTailMarker == 0) ? 0 : -window;
         long rightOffset = (headTailMarker == 1) ? 0 : window;
         UpdatedMarkers updatedMarkers = new UpdatedMarkers(shrinkFilterUltra.getBucketNum());
-        List<Integer> pointers = varPointers.get(varName);
+        int[] pointers = varPointers.get(varName);
 
-        List<Integer> updatedPointers = new ArrayList<>(pointers.size());
+        int[] updatedPointers = new int[pointers.length];
+        int updatedNum = 0;
         // use this to accelerate update
         ReplayIntervals intervals = new ReplayIntervals(1024);
         int filteredEventNum = 0;
 
         int cnt = 0;
         for(int pointer : pointers){
-            byte[] record = records.get(pointer);
-            long ts = schema.getTimestamp(record);
+            long ts = getTimestamp(pointer);
 
             if(shrinkFilterUltra.query(ts, window)){
                 cnt++;
+                // only copy the record when we need to check dependent predicates
+                byte[] record = records.get(pointer);
                 // check all related dependent predicates
                 // for example, varName: c, previousVariables: a, b
                 // dependent predicates: a.A1 = c.A1 + 5 AND b.A2 * 2 = c.A2
@@ -444,7 +474,7 @@ public class EventCache {
                 if(satisfied){
                     filteredEventNum++;
                     intervals.insert(ts + leftOffset, ts + rightOffset);
-                    updatedPointers.add(pointer);
+                    updatedPointers[updatedNum++] = pointer;
                 }
             }
         }
@@ -468,7 +498,7 @@ public class EventCache {
             }
         }
 
-        varPointers.put(varName, updatedPointers);
+        varPointers.put(varName, Arrays.copyOf(updatedPointers, updatedNum));
         return updatedMarkers.serialize(filteredEventNum);
     }
 
@@ -478,28 +508,28 @@ public class EventCache {
         long leftOffset = (headTailMarker == 0) ? 0 : -window;
         long rightOffset = (headTailMarker == 1) ? 0 : window;
 
-        List<Integer> pointers = varPointers.get(varName);
-        List<Integer> updatedPointers = new ArrayList<>(pointers.size());
+        int[] pointers = varPointers.get(varName);
+        int[] updatedPointers = new int[pointers.length];
+        int updatedNum = 0;
 
         Roaring64Bitmap updatedBitmap = new Roaring64Bitmap();
 
-        System.out.println("before filtering, key number: " + pointers.size());
+        System.out.println("before filtering, key number: " + pointers.length);
 
         for(int pointer : pointers){
-            byte[] record = records.get(pointer);
-            long ts = schema.getTimestamp(record);
+            long ts = getTimestamp(pointer);
             int convertedKey = (int) (ts * EQUAL_DIVISION / window);
             if(bitmap.contains(convertedKey)){
                 long convertedStart = (ts + leftOffset) * EQUAL_DIVISION / window;
                 long convertedEnd = (ts + rightOffset) * EQUAL_DIVISION / window;
                 updatedBitmap.add(convertedStart, convertedEnd + 1);
-                updatedPointers.add(pointer);
+                updatedPointers[updatedNum++] = pointer;
             }
         }
 
-        System.out.println("after filtering, key number:" + updatedPointers.size());
+        System.out.println("after filtering, key number:" + updatedNum);
 
-        varPointers.put(varName, updatedPointers);
+        varPointers.put(varName, Arrays.copyOf(updatedPointers, updatedNum));
         updatedBitmap.and(bitmap);
 
         long size = updatedBitmap.serializedSizeInBytes();
@@ -525,39 +555,58 @@ public class EventCache {
         intervals.sortAndReconstruct();
         ReplayIntervals newIntervals = new ReplayIntervals();
 
-        List<Integer> pointers = varPointers.get(varName);
-        List<Integer> updatedPointers = new ArrayList<>(pointers.size());
-        System.out.println("before filtering, key number: " + pointers.size());
+        int[] pointers = varPointers.get(varName);
+        int[] updatedPointers = new int[pointers.length];
+        int updatedNum = 0;
+        System.out.println("before filtering, key number: " + pointers.length);
         for(int pointer : pointers){
-            byte[] record = records.get(pointer);
-            long ts = schema.getTimestamp(record);
+            long ts = getTimestamp(pointer);
             // if events are ordered, we can use prefetchContains function to obtain better performance
             if(intervals.contains(ts)){
                 newIntervals.insert(ts + leftOffset, ts + rightOffset);
-                updatedPointers.add(pointer);
+                updatedPointers[updatedNum++] = pointer;
             }
         }
-        System.out.println("after filtering, key number:" + updatedPointers.size());
-        varPointers.put(varName, updatedPointers);
+        System.out.println("after filtering, key number:" + updatedNum);
+        varPointers.put(varName, Arrays.copyOf(updatedPointers, updatedNum));
         intervals.intersect(newIntervals);
         return intervals.serialize();
     }
 
+    // dictionary codes are local to this store, so we send records in declared format
+    private void putDecodedRecord(int pointer, ByteBuffer buffer){
+        if(schema.hasDictionary()){
+            records.decodeTo(pointer, schema, buffer);
+        }else{
+            records.copyTo(pointer, buffer);
+        }
+    }
+
+    // send all records that satisfy independent predicates (push-down without filtering)
+    public ByteBuffer getRecords(){
+        int[] mergedPointers = getMergedPointers();
+        ByteBuffer buffer = ByteBuffer.allocate(schema.getDecodedRecordLen() * mergedPointers.length);
+        for(int pointer : mergedPointers){
+            putDecodedRecord(pointer, buffer);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
     // send all records that maybe involve in matching to computer node
     public ByteBuffer getRecords(long window, ShrinkFilter shrinkFilter){
-        List<Integer> mergedPointers = getMergedPointers();
+        int[] mergedPointers = getMergedPointers();
 
-        int dataLen = schema.getFixedRecordLen();
-        int size = mergedPointers.size();
+        int dataLen = schema.getDecodedRecordLen();
+        int size = mergedPointers.length;
         ByteBuffer buffer = ByteBuffer.allocate(dataLen * size);
 
         // if events are ordered, we need to optimization:
         // query get range?
         for(int pointer : mergedPointers){
-            byte[] record = records.get(pointer);
-            long ts = schema.getTimestamp(record);
+            long ts = getTimestamp(pointer);
             if(shrinkFilter.query(ts, window)){
-                buffer.put(record);
+                putDecodedRecord(pointer, buffer);
 
             }
         }
@@ -570,18 +619,17 @@ public class EventCache {
     }
 
     public ByteBuffer getRecords(long window, Roaring64Bitmap bitmap){
-        List<Integer> mergedPointers = getMergedPointers();
+        int[] mergedPointers = getMergedPointers();
 
-        int dataLen = schema.getFixedRecordLen();
-        int size = mergedPointers.size();
+        int dataLen = schema.getDecodedRecordLen();
+        int size = mergedPointers.length;
         ByteBuffer buffer = ByteBuffer.allocate(dataLen * size);
 
         for(int pointer : mergedPointers){
-            byte[] record = records.get(pointer);
-            long ts = schema.getTimestamp(record);
+            long ts = getTimestamp(pointer);
             int convertedKey = (int) (ts * EQUAL_DIVISION / window);
             if(bitmap.contains(convertedKey)){
-                buffer.put(record);
+                putDecodedRecord(pointer, buffer);
             }
         }
         buffer.flip();
@@ -594,17 +642,16 @@ public class EventCache {
     }
 
     public ByteBuffer getRecords(ReplayIntervals intervals){
-        List<Integer> mergedPointers = getMergedPointers();
+        int[] mergedPointers = getMergedPointers();
 
-        int dataLen = schema.getFixedRecordLen();
-        int size = mergedPointers.size();
+        int dataLen = schema.getDecodedRecordLen();
+        int size = mergedPointers.length;
         ByteBuffer buffer = ByteBuffer.allocate(dataLen * size);
 
         for(int pointer : mergedPointers){
-            byte[] record = records.get(pointer);
-            long ts = schema.getTimestamp(record);
+            long ts = getTimestamp(pointer);
             if(intervals.contains(ts)){
-                buffer.put(record);
+                putDecodedRecord(pointer, buffer);
             }
         }
         buffer.flip();
@@ -617,20 +664,17 @@ public class EventCache {
     }
 
     public ByteBuffer getRecords(long window, ShrinkFilterUltra shrinkFilterUltra){
-        List<Integer> mergedPointers = getMergedPointers();
+        int[] mergedPointers = getMergedPointers();
 
-        int dataLen = schema.getFixedRecordLen();
-        int size = mergedPointers.size();
+        int dataLen = schema.getDecodedRecordLen();
+        int size = mergedPointers.length;
         ByteBuffer buffer = ByteBuffer.allocate(dataLen * size);
 
-        // if events are ordered, can we optimize query?
-        for(int pointer : mergedPointers){
-            byte[] record = records.get(pointer);
-            long ts = schema.getTimestamp(record);
-            if(shrinkFilterUltra.query(ts, window)){
-                buffer.put(record);
-
-            }
+        // events are ordered, querySorted only probes buckets once for each window
+        BitSet results = new BitSet(size);
+        shrinkFilterUltra.querySorted(getTimestamps(mergedPointers), window, results);
+        for(int i = results.nextSetBit(0); i >= 0; i = results.nextSetBit(i + 1)){
+            putDecodedRecord(mergedPointers[i], buffer);
         }
         buffer.flip();
         ByteBuffer truncatedBuffer = ByteBuffer.allocate(buffer.remaining());
@@ -640,52 +684,12 @@ public class EventCache {
         return truncatedBuffer;
     }
 
-    // merge two lists (if there having two same values, we only keep one value)
-    private List<Integer> merge(List<Integer> list1, List<Integer> list2){
-        if(list1 == null || list1.isEmpty()){
-            return list2;
-        }
-
-        int size1 = list1.size();
-        int size2 = list2.size();
-        List<Integer> mergedList = new ArrayList<>(size1 + size2);
-
-        int i = 0, j = 0;
-        while(i < size1 && j < size2){
-            if(list1.get(i) < list2.get(j)){
-                mergedList.add(list1.get(i));
-                i++;
-            }else if (list1.get(i) > list2.get(j)){
-                mergedList.add(list2.get(j));
-                j++;
-            }else{
-                // if there having same two values we only keep one value
-                mergedList.add(list1.get(i));
-                i++;
-                j++;
-            }
-        }
-
-        while(i < size1){
-            mergedList.add(list1.get(i));
-            i++;
-        }
-
-        while(j < size2){
-            mergedList.add(list2.get(j));
-            j++;
-        }
-        return mergedList;
-    }
-
-
-
     public void print(){
-        for(Map.Entry<String, List<Integer>> entry : varPointers.entrySet()){
+        for(Map.Entry<String, int[]> entry : varPointers.entrySet()){
             String varName = entry.getKey();
-            List<Integer> pointers = entry.getValue();
+            int[] pointers = entry.getValue();
             System.out.println("varName: " + varName + " -> events:");
-            for(Integer pointer : pointers){
+            for(int pointer : pointers){
                 System.out.println("\t" + schema.getRecordStr(records.get(pointer)));
             }
 
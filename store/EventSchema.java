@@ -11,6 +11,7 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.annotation.JSONField;
 
 /*
 Given the following sql
@@ -31,8 +32,18 @@ public class EventSchema {
     private List<String> columnNames;                       // column names
     private List<DataType> dataTypes;                       // column data type
     private List<Integer> dataLengths;                      // column length
+    // VARCHAR columns that are stored as dictionary codes (declared in json file)
+    private List<String> dictionaryColumns = new ArrayList<>(0);
+    // if true, new store files use compressed pages (see CompressedPage), readers take page format from SegmentManifest
+    private boolean compressed = false;
+    // columns that have bitmap index (see BitmapIndex)
+    private List<String> indexColumns = new ArrayList<>(0);
     // columnName -> basic information
     private Map<String, ColumnInfo> columnInfoMap = new HashMap<>(10);
+    // only the schema that reads/writes a store has dictionaries, dictionaries[i] is null if i-th column is not encoded
+    private VarcharDictionary[] dictionaries;
+    // record length before dictionary encoding
+    private int decodedRecordLen;
 
 
     // please note that after creating table, we will store schema into json file
@@ -124,6 +135,160 @@ public class EventSchema {
     }
 
 
+    /**
+     * storage schema: dictionary columns are stored as int codes (4 bytes), other columns are same as declared schema
+     * @param schema        declared schema
+     * @param dictionaries  dictionaries of columns
+     */
+    private EventSchema(EventSchema schema, VarcharDictionary[] dictionaries){
+        this.tableName = schema.tableName;
+        this.columnNames = schema.columnNames;
+        this.dataTypes = schema.dataTypes;
+        this.dictionaryColumns = schema.dictionaryColumns;
+        this.compressed = schema.compressed;
+        this.indexColumns = schema.indexColumns;
+        this.dictionaries = dictionaries;
+        decodedRecordLen = schema.fixedRecordLen;
+
+        int size = columnNames.size();
+        dataLengths = new ArrayList<>(size);
+        columnInfoMap = new HashMap<>(10);
+        int startPos = 0;
+        for(int i = 0; i < size; i++){
+            int dataLen = dictionaries[i] == null ? schema.dataLengths.get(i) : 4;
+            dataLengths.add(dataLen);
+            columnInfoMap.put(columnNames.get(i), new ColumnInfo(startPos, dataLen, dataTypes.get(i), dictionaries[i]));
+            startPos += dataLen;
+        }
+        fixedRecordLen = startPos;
+    }
+
+    /**
+     * create the schema that writes a new store, dictionary columns use new (empty) dictionaries
+     * @return  storage schema, if this table does not declare dictionary columns, return this schema
+     */
+    public EventSchema createStorageSchema(){
+        if(dictionaryColumns == null || dictionaryColumns.isEmpty()){
+            return this;
+        }
+        VarcharDictionary[] newDictionaries = new VarcharDictionary[columnNames.size()];
+        for(String columnName : dictionaryColumns){
+            int i = columnNames.indexOf(columnName);
+            if(i == -1 || dataTypes.get(i) != DataType.VARCHAR){
+                throw new RuntimeException("Dictionary column '" + columnName + "' should be a VARCHAR column");
+            }
+            newDictionaries[i] = new VarcharDictionary(dataLengths.get(i));
+        }
+        return new EventSchema(this, newDictionaries);
+    }
+
+    /**
+     * obtain the schema that reads a stored table, dictionaries are loaded from disk
+     * please note that encoded columns are decided by the store (i.e., its dictionary file), not by json file,
+     * because json file may be changed after the store was written.
+     * if the dictionary file does not exist (e.g., the store was written before dictionary encoding), we use declared layout
+     * @param tableName         table name
+     * @param dictionaryFile    dictionary file of store (see VarcharDictionary.getDictionaryFile)
+     * @return                  storage schema
+     */
+    public static EventSchema getStorageSchema(String tableName, File dictionaryFile){
+        return getStorageSchema(tableName, dictionaryFile, false);
+    }
+
+    /**
+     * obtain the schema that reads a row store (EventStore), its page format is recorded in segment manifest
+     * @param tableName     table name
+     * @param storeName     store name, i.e., table name + node id
+     * @return              storage schema
+     */
+    public static EventSchema getRowStorageSchema(String tableName, String storeName){
+        return getStorageSchema(tableName, VarcharDictionary.getDictionaryFile(storeName), SegmentManifest.load(storeName).isCompressed());
+    }
+
+    /**
+     * same as getStorageSchema(tableName, dictionaryFile), json file only decides page format of new stores
+     * @param tableName         table name
+     * @param dictionaryFile    dictionary file of store
+     * @param compressed        whether the store uses compressed pages
+     * @return                  storage schema
+     */
+    public static EventSchema getStorageSchema(String tableName, File dictionaryFile, boolean compressed){
+        EventSchema schema = getEventSchema(tableName);
+        schema.compressed = compressed;
+        if(!dictionaryFile.exists()){
+            schema.dictionaryColumns = new ArrayList<>(0);
+            return schema;
+        }
+        VarcharDictionary[] storedDictionaries = VarcharDictionary.load(dictionaryFile, schema.dataLengths);
+        List<String> encodedColumns = new ArrayList<>(4);
+        for(int i = 0; i < storedDictionaries.length; i++){
+            if(storedDictionaries[i] != null){
+                encodedColumns.add(schema.columnNames.get(i));
+            }
+        }
+        schema.dictionaryColumns = encodedColumns;
+        return new EventSchema(schema, storedDictionaries);
+    }
+
+    // after writing a store, we save its dictionaries
+    // if this store does not encode any column, we delete the dictionary file of the old store that has same name
+    public void storeDictionaries(File dictionaryFile){
+        if(dictionaries != null){
+            VarcharDictionary.store(dictionaryFile, dictionaries);
+        }else if(dictionaryFile.exists() && !dictionaryFile.delete()){
+            throw new RuntimeException("cannot delete old dictionary file: '" + dictionaryFile.getName() + "'");
+        }
+    }
+
+    public boolean hasDictionary(){
+        return dictionaries != null;
+    }
+
+    // length of records that are sent to computer node
+    @JSONField(serialize = false)
+    public int getDecodedRecordLen(){
+        return dictionaries == null ? fixedRecordLen : decodedRecordLen;
+    }
+
+    /**
+     * convert a stored record into declared format (codes are replaced by fixed length char arrays),
+     * then the computer node can use the declared schema to read it
+     * @param src       source buffer
+     * @param srcPos    record start position in source buffer
+     * @param dst       destination buffer, record is written at its position
+     */
+    public void decodeRecord(ByteBuffer src, int srcPos, ByteBuffer dst){
+        int pos = srcPos;
+        int columnNum = dataLengths.size();
+        for(int i = 0; i < columnNum; i++){
+            int dataLen = dataLengths.get(i);
+            if(dictionaries != null && dictionaries[i] != null){
+                dictionaries[i].copyTo(src.getInt(pos), dst);
+            }else{
+                for(int j = 0; j < dataLen; j++){
+                    dst.put(src.get(pos + j));
+                }
+            }
+            pos += dataLen;
+        }
+    }
+
+    /**
+     * same as decodeRecord(src, srcPos, dst)
+     * @param records       byte array that stores records (e.g., page)
+     * @param recordPos     record start position
+     * @return              record in declared format
+     */
+    public byte[] decodeRecord(byte[] records, int recordPos){
+        byte[] record = new byte[getDecodedRecordLen()];
+        if(dictionaries == null){
+            System.arraycopy(records, recordPos, record, 0, fixedRecordLen);
+        }else{
+            decodeRecord(ByteBuffer.wrap(records), recordPos, ByteBuffer.wrap(record));
+        }
+        return record;
+    }
+
     public static EventSchema getEventSchema(String tableName) {
         // tableName = tableName.toUpperCase();
         EventSchema schema = null;
@@ -136,13 +301,36 @@ public class EventSchema {
             int numRead = fileReader.read(buffer);
             String jsonString = new String(buffer, 0, numRead);
             schema = JSON.parseObject(jsonString, EventSchema.class);
-            return schema;
         } catch (Exception e) {
             System.out.println(e.getMessage());
         }
+        if(schema != null){
+            schema.checkDeclaredColumns();
+        }
         return schema;
     }
 
+    // dictionary and index columns are checked when json file is loaded, so a wrong json file does not fail halfway through ingest
+    private void checkDeclaredColumns(){
+        if(dictionaryColumns != null){
+            for(String columnName : dictionaryColumns){
+                int i = columnNames.indexOf(columnName);
+                if(i == -1 || dataTypes.get(i) != DataType.VARCHAR){
+                    throw new RuntimeException("Dictionary column '" + columnName + "' should be a VARCHAR column");
+                }
+            }
+        }
+        if(indexColumns != null){
+            for(String columnName : indexColumns){
+                int i = columnNames.indexOf(columnName);
+                boolean isDictionaryColumn = dictionaryColumns != null && dictionaryColumns.contains(columnName);
+                if(i == -1 || !(dataTypes.get(i) == DataType.INT || isDictionaryColumn)){
+                    throw new RuntimeException("Index column '" + columnName + "' should be an INT column or a dictionary column");
+                }
+            }
+        }
+    }
+
     public final DataType getDataType(String columnName) {
         return columnInfoMap.get(columnName).getDataType();
     }
@@ -174,6 +362,10 @@ public class EventSchema {
                     break;
                 case VARCHAR:
                     byte[] bytes = splits[i].getBytes();
+                    if(dictionaries != null && dictionaries[i] != null){
+                        buffer.putInt(dictionaries[i].encode(bytes));
+                        break;
+                    }
                     int varcharLen = dataLengths.get(i);
                     byte[] targetBytes = new byte[varcharLen];
                     System.arraycopy(bytes, 0, targetBytes, 0, Math.min(bytes.length, varcharLen));
@@ -209,6 +401,10 @@ public class EventSchema {
                         break;
                     case VARCHAR:
                         byte[] bytes = splits[i].getBytes();
+                        if(dictionaries != null && dictionaries[i] != null){
+                            buffer.putInt(dictionaries[i].encode(bytes));
+                            break;
+                        }
                         int varcharLen = dataLengths.get(i);
                         byte[] targetBytes = new byte[varcharLen];
                         System.arraycopy(bytes, 0, targetBytes, 0, Math.min(bytes.length, varcharLen));
@@ -224,6 +420,223 @@ public class EventSchema {
         return buffer.array();
     }
 
+    /**
+     * parse a csv line without creating strings, the record is written into dst directly
+     * numbers are parsed in place, if a number has an uncommon format (e.g., too many digits),
+     * we fall back to Integer.parseInt / Double.parseDouble, so results are same as covertStringToBytes
+     * @param src       source bytes (e.g., mapped csv file)
+     * @param start     start position of line
+     * @param end       end position of line (exclusive, line separator is not included)
+     * @param dst       destination buffer
+     * @param dstPos    record start position in dst
+     */
+    public void convertBytesToRecord(ByteBuffer src, int start, int end, ByteBuffer dst, int dstPos){
+        int columnNum = dataTypes.size();
+        int fieldStart = start;
+        int recordPos = dstPos;
+        for(int i = 0; i < columnNum; i++){
+            int fieldEnd = fieldStart;
+            while(fieldEnd < end && src.get(fieldEnd) != ','){
+                fieldEnd++;
+            }
+            if((fieldEnd == end) != (i == columnNum - 1)){
+                throw new RuntimeException("Unsupported number of columns, line: " + toString(src, start, end));
+            }
+            switch(dataTypes.get(i)){
+                case INT:
+                    dst.putInt(recordPos, parseInt(src, fieldStart, fieldEnd));
+                    break;
+                case LONG:
+                    dst.putLong(recordPos, parseLong(src, fieldStart, fieldEnd));
+                    break;
+                case FLOAT:
+                    dst.putFloat(recordPos, (float) parseDecimal(src, fieldStart, fieldEnd, true));
+                    break;
+                case DOUBLE:
+                    dst.putDouble(recordPos, parseDecimal(src, fieldStart, fieldEnd, false));
+                    break;
+                case VARCHAR:
+                    if(dictionaries != null && dictionaries[i] != null){
+                        dst.putInt(recordPos, dictionaries[i].encode(src, fieldStart, fieldEnd));
+                        break;
+                    }
+                    int varcharLen = dataLengths.get(i);
+                    int copyLen = Math.min(fieldEnd - fieldStart, varcharLen);
+                    for(int j = 0; j < copyLen; j++){
+                        dst.put(recordPos + j, src.get(fieldStart + j));
+                    }
+                    for(int j = copyLen; j < varcharLen; j++){
+                        dst.put(recordPos + j, (byte) 0);
+                    }
+                    break;
+                default:
+                    throw new RuntimeException("Unsupported data type: " + dataTypes.get(i));
+            }
+            recordPos += dataLengths.get(i);
+            fieldStart = fieldEnd + 1;
+        }
+    }
+
+    /**
+     * parse lines in [start, end) of source buffer, each line ends with '\n' (last line can omit it)
+     * @param src       source bytes
+     * @param start     start position
+     * @param end       end position
+     * @param lineNum   number of lines
+     * @return          records (fixed length)
+     */
+    public byte[] batchConvertBytesToRecords(ByteBuffer src, int start, int end, int lineNum){
+        byte[] records = new byte[fixedRecordLen * lineNum];
+        ByteBuffer dst = ByteBuffer.wrap(records);
+        int lineStart = start;
+        for(int i = 0; i < lineNum; i++){
+            int lineEnd = lineStart;
+            while(lineEnd < end && src.get(lineEnd) != '\n'){
+                lineEnd++;
+            }
+            int nextLineStart = lineEnd + 1;
+            // windows line separator
+            if(lineEnd > lineStart && src.get(lineEnd - 1) == '\r'){
+                lineEnd--;
+            }
+            convertBytesToRecord(src, lineStart, lineEnd, dst, i * fixedRecordLen);
+            lineStart = nextLineStart;
+        }
+        return records;
+    }
+
+    private static final double[] DOUBLE_POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private static final float[] FLOAT_POWERS_OF_TEN = {
+            1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f
+    };
+
+    // only used for error message and fallback
+    private static String toString(ByteBuffer src, int start, int end){
+        byte[] bytes = new byte[end - start];
+        for(int i = start; i < end; i++){
+            bytes[i - start] = src.get(i);
+        }
+        return new String(bytes);
+    }
+
+    private static int parseInt(ByteBuffer src, int start, int end){
+        if(end - start > 0 && end - start < 11){
+            long value = parseLong(src, start, end);
+            if(value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE){
+                return (int) value;
+            }
+        }
+        return Integer.parseInt(toString(src, start, end));
+    }
+
+    private static long parseLong(ByteBuffer src, int start, int end){
+        int pos = start;
+        boolean negative = false;
+        if(pos < end && (src.get(pos) == '-' || src.get(pos) == '+')){
+            negative = src.get(pos) == '-';
+            pos++;
+        }
+        // at most 18 digits, then value cannot overflow
+        if(pos == end || end - pos > 18){
+            return Long.parseLong(toString(src, start, end));
+        }
+        long value = 0;
+        for(; pos < end; pos++){
+            int digit = src.get(pos) - '0';
+            if(digit < 0 || digit > 9){
+                return Long.parseLong(toString(src, start, end));
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * fast path: mantissa and power of ten are exact, then a single multiplication or division is correctly rounded
+     * (double: at most 15 significant digits and |exponent| <= 22, float: 7 digits and |exponent| <= 10)
+     * otherwise we call Double.parseDouble / Float.parseFloat
+     */
+    private static double parseDecimal(ByteBuffer src, int start, int end, boolean isFloat){
+        int pos = start;
+        boolean negative = false;
+        if(pos < end && (src.get(pos) == '-' || src.get(pos) == '+')){
+            negative = src.get(pos) == '-';
+            pos++;
+        }
+        long mantissa = 0;
+        int digitNum = 0;                   // number of significant digits
+        int exponent = 0;
+        boolean hasDigit = false;
+        boolean valid = true;
+        for(; pos < end; pos++){
+            int digit = src.get(pos) - '0';
+            if(digit < 0 || digit > 9){
+                break;
+            }
+            hasDigit = true;
+            if(mantissa != 0 || digit != 0){
+                digitNum++;
+                if(digitNum <= 18){
+                    mantissa = mantissa * 10 + digit;
+                }
+            }
+        }
+        if(pos < end && src.get(pos) == '.'){
+            pos++;
+            for(; pos < end; pos++){
+                int digit = src.get(pos) - '0';
+                if(digit < 0 || digit > 9){
+                    break;
+                }
+                hasDigit = true;
+                if(mantissa != 0 || digit != 0){
+                    digitNum++;
+                    if(digitNum <= 18){
+                        mantissa = mantissa * 10 + digit;
+                    }
+                }
+                exponent--;
+            }
+        }
+        if(pos < end && (src.get(pos) == 'e' || src.get(pos) == 'E')){
+            pos++;
+            boolean negativeExponent = false;
+            if(pos < end && (src.get(pos) == '-' || src.get(pos) == '+')){
+                negativeExponent = src.get(pos) == '-';
+                pos++;
+            }
+            int exponentValue = 0;
+            int exponentDigitNum = 0;
+            for(; pos < end; pos++){
+                int digit = src.get(pos) - '0';
+                if(digit < 0 || digit > 9 || exponentDigitNum > 5){
+                    valid = false;
+                    break;
+                }
+                exponentValue = exponentValue * 10 + digit;
+                exponentDigitNum++;
+            }
+            valid = valid && exponentDigitNum > 0;
+            exponent += negativeExponent ? -exponentValue : exponentValue;
+        }
+        valid = valid && hasDigit && pos == end;
+
+        if(valid && isFloat && digitNum <= 7 && exponent >= -10 && exponent <= 10){
+            float value = exponent >= 0 ? mantissa * FLOAT_POWERS_OF_TEN[exponent] : mantissa / FLOAT_POWERS_OF_TEN[-exponent];
+            return negative ? -value : value;
+        }
+        if(valid && !isFloat && digitNum <= 15 && exponent >= -22 && exponent <= 22){
+            double value = exponent >= 0 ? mantissa * DOUBLE_POWERS_OF_TEN[exponent] : mantissa / DOUBLE_POWERS_OF_TEN[-exponent];
+            return negative ? -value : value;
+        }
+        String str = toString(src, start, end);
+        return isFloat ? Float.parseFloat(str) : Double.parseDouble(str);
+    }
+
     @Deprecated
     public Object getColumnValue(String columnName, MappedByteBuffer buffer, int pagePos){
         ColumnInfo columnInfo = columnInfoMap.get(columnName);
@@ -240,6 +653,9 @@ public class EventSchema {
             case DOUBLE:
                 return buffer.getDouble(startPos + pagePos);
             case VARCHAR:
+                if(columnInfo.getDictionary() != null){
+                    return columnInfo.getDictionary().getPaddedBytes(buffer.getInt(startPos + pagePos));
+                }
                 // due to we use fix length to store this column
                 // and string without end mark, we need to truncate this byte array
                 int offset = columnInfo.getOffset();
@@ -266,6 +682,9 @@ public class EventSchema {
             case DOUBLE:
                 return buffer.getDouble(startPos + pagePos);
             case VARCHAR:
+                if(columnInfo.getDictionary() != null){
+                    return columnInfo.getDictionary().getPaddedBytes(buffer.getInt(startPos + pagePos));
+                }
                 // due to we use fix length to store this column
                 // and string without end mark, we need to truncate this byte array
                 int offset = columnInfo.getOffset();
@@ -311,6 +730,9 @@ public class EventSchema {
             case DOUBLE:
                 return buffer.getDouble();
             case VARCHAR:
+                if(columnInfo.getDictionary() != null){
+                    return columnInfo.getDictionary().decode(buffer.getInt());
+                }
                 int endCharPos;
                 for(endCharPos = 0; endCharPos < offset; ++endCharPos){
                     if(buffer.get(endCharPos) == 0){
@@ -365,6 +787,30 @@ public class EventSchema {
         this.dataLengths = dataLengths;
     }
 
+    public List<String> getDictionaryColumns() {
+        return dictionaryColumns;
+    }
+
+    public void setDictionaryColumns(List<String> dictionaryColumns) {
+        this.dictionaryColumns = dictionaryColumns;
+    }
+
+    public List<String> getIndexColumns() {
+        return indexColumns;
+    }
+
+    public void setIndexColumns(List<String> indexColumns) {
+        this.indexColumns = indexColumns;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+
     public String getRecordStr(byte[] record){
         ByteBuffer buffer = ByteBuffer.wrap(record);
         StringBuilder builder = new StringBuilder(128);
@@ -385,6 +831,10 @@ public class EventSchema {
                     builder.append(buffer.getDouble());
                     break;
                 case VARCHAR:
+                    if(dictionaries != null && dictionaries[i] != null){
+                        builder.append(dictionaries[i].decode(buffer.getInt()));
+                        break;
+                    }
                     int strLen = dataLengths.get(i);
                     byte[] result = new byte[strLen];
                     buffer.get(result);
@@ -4,22 +4,45 @@ import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.List;
 
 /**
  * Event Storage Class
  * Storing Byte Type Records
  * filename=schemaName.store
  * Caching function not implemented
+ * writing: we keep one FileChannel open, records are put into a direct buffer that caches
+ * groupCommitPageNum pages, when the buffer is full, all pages are written by one call (group commit)
+ * please call close() after writing
+ * segments: if segmentPageNum > 0, pages are split into segment files, segment i stores the pages
+ * [i * segmentPageNum, (i + 1) * segmentPageNum), filename=schemaName.SEGi.store
+ * page ids are still global (zone map and bitmap index do not know segments),
+ * SegmentManifest records the time range of each segment, then FullScan can skip a whole segment
+ * reading: if deletionFlag is false, file is resolved from SegmentManifest (old store only has schemaName.store),
+ * so it does not depend on current segmentPageNum
  */
 public class EventStore {
     public static int pageSize = 4 * 1024;          // page size is set to 4KB
+    public static int groupCommitPageNum = 16;      // number of pages written by one group commit
+    public static SyncPolicy syncPolicy = SyncPolicy.ON_FLUSH;
+    public static int segmentPageNum = 4096;        // number of pages of a segment (16MB), 0 means we only use one file
+    private final String storeName;
     private int page;                               // Current buffered pages
     private short offset;                           // offset
-    private final File file;                        // file
-    private final ByteBuffer buf;                   // byte buffer for writing record
+    private File file;                              // file (current segment)
+    private ByteBuffer writeBuffer;                 // direct buffer for writing records, it caches several pages
+    private FileChannel writeChannel;               // opened when we first write, closed by close()
+    private byte[] zeroBytes;                       // used for padding
     private int cachePage;                          // cached page id
     private MappedByteBuffer readMappedBuffer;      // mapped buffer for reading, we only cache a page
 
+    // when we call FileChannel.force (fsync)
+    public enum SyncPolicy {
+        NEVER,                  // leave it to operating system
+        ON_FLUSH,               // forceFlush() and close()
+        ON_GROUP_COMMIT         // after each group commit, it is the safest but slowest
+    }
+
     public EventStore(String tableName, boolean deletionFlag){
         String storePath = System.getProperty("user.dir") + File.separator + "event_store";
         File directory = new File(storePath);
@@ -32,16 +55,28 @@ public class EventStore {
                 throw new RuntimeException("Create the directory " + storePath + " failed.");
             }
         }
-        String filename = tableName.toUpperCase() + ".store";
+        storeName = tableName.toUpperCase();
+        String filename = storeName + ".store";
         String filePath = storePath + File.separator + filename;
         // System.out.println("store filePath: " + filePath);
-        file = new File(filePath);
+        if(deletionFlag){
+            file = segmentPageNum > 0 ? getSegmentFile(storeName, 0) : new File(filePath);
+        }else{
+            // store on disk may be written with another segment size, or it may be an old store without manifest
+            List<SegmentManifest.Segment> segments = SegmentManifest.load(storeName).getSegments();
+            file = segments.isEmpty() ? new File(filePath) : segments.get(0).getFile();
+        }
 
-        if(deletionFlag && file.exists()){
-            System.out.println("file: '"+ filename + "' exists in disk, we will delete this file, flag: " + file.delete());
+        if(deletionFlag){
+            // old store may be written with another segment size, so we delete all segments
+            deleteSegmentFiles(storeName);
+            // a table only has one physical format, old column files of this table are out of date
+            ColumnStore.drop(storeName);
         }
 
-        buf = ByteBuffer.allocate(pageSize);
+        // write buffer and channel are created lazily, because most stores are only used for reading
+        writeBuffer = null;
+        writeChannel = null;
         cachePage = -1;
         page = 0;
         offset = 0;
@@ -57,10 +92,107 @@ public class EventStore {
         return file;
     }
 
+    /**
+     * file of a segment
+     * @param storeName     store name
+     * @param segmentId     segment id, -1 means the store is not split (old format)
+     * @return              segment file
+     */
+    public static File getSegmentFile(String storeName, int segmentId){
+        String storePath = System.getProperty("user.dir") + File.separator + "event_store";
+        String filename = segmentId == -1 ? storeName.toUpperCase() + ".store" : storeName.toUpperCase() + ".SEG" + segmentId + ".store";
+        return new File(storePath + File.separator + filename);
+    }
+
+    // delete all segment files of a store (STORENAME.store and STORENAME.SEGi.store)
+    static void deleteSegmentFiles(String storeName){
+        File directory = new File(System.getProperty("user.dir") + File.separator + "event_store");
+        String filename = storeName.toUpperCase() + ".store";
+        String prefix = storeName.toUpperCase() + ".SEG";
+        File[] oldFiles = directory.listFiles((dir, name) -> name.equals(filename) ||
+                (name.startsWith(prefix) && name.endsWith(".store")));
+        if(oldFiles != null){
+            for(File oldFile : oldFiles){
+                BufferPool.invalidateSharedPool(oldFile);
+                System.out.println("file: '"+ oldFile.getName() + "' exists in disk, we will delete this file, flag: " + oldFile.delete());
+            }
+        }
+    }
+
+    /**
+     * delete a row store and its metadata (manifest, zone map, bitmap index and dictionaries),
+     * it is called before a table is stored in columnar format
+     * @param storeName     store name
+     */
+    public static void drop(String storeName){
+        deleteSegmentFiles(storeName);
+        File[] files = {SegmentManifest.getManifestFile(storeName), ZoneMap.getZoneMapFile(storeName),
+                BitmapIndex.getIndexFile(storeName), VarcharDictionary.getDictionaryFile(storeName)};
+        for(File file : files){
+            if(file.exists()){
+                System.out.println("file: '"+ file.getName() + "' exists in disk, we will delete this file, flag: " + file.delete());
+            }
+        }
+    }
+
+    // note that the records in write buffer are not counted, please call forceFlush() before reading
     public long getFileSize(){
         return file.length();
     }
 
+    private void openWriter(){
+        if(writeBuffer == null){
+            writeBuffer = ByteBuffer.allocateDirect(pageSize * groupCommitPageNum);
+            zeroBytes = new byte[pageSize];
+        }
+    }
+
+    // write all cached pages by one call, channel of current segment is opened when we first write it
+    private void groupCommit(){
+        writeBuffer.flip();
+        try{
+            if(writeChannel == null && writeBuffer.hasRemaining()){
+                writeChannel = new FileOutputStream(file, true).getChannel();
+            }
+            while(writeBuffer.hasRemaining()){
+                writeChannel.write(writeBuffer);
+            }
+            if(syncPolicy == SyncPolicy.ON_GROUP_COMMIT && writeChannel != null){
+                writeChannel.force(false);
+            }
+        }catch (IOException e){
+            // cached pages are lost, ingestion must stop before it writes zone map, index and manifest of these pages
+            closeChannel();
+            throw new RuntimeException("cannot write file '" + file.getName() + "': " + e.getMessage());
+        }
+        writeBuffer.clear();
+    }
+
+    // pad current page, then next record is written into next page (and maybe next segment)
+    private void nextPage(){
+        padding(pageSize - offset);
+        page++;
+        offset = 0;
+        if(segmentPageNum > 0 && page % segmentPageNum == 0){
+            // cached pages belong to previous segment
+            forceFlush();
+            closeChannel();
+            file = getSegmentFile(storeName, page / segmentPageNum);
+        }
+    }
+
+    // fill zero bytes, then a page is full
+    private void padding(int len){
+        while(len > 0){
+            if(!writeBuffer.hasRemaining()){
+                groupCommit();
+            }
+            int writeLen = Math.min(len, writeBuffer.remaining());
+            writeBuffer.put(zeroBytes, 0, writeLen);
+            len -= writeLen;
+        }
+    }
+
     /**
      * this function aims to support indexes
      * please ensure file is cleared
@@ -69,24 +201,18 @@ public class EventStore {
      * @return              storage position
      */
     public final RID insertSingleRecord(byte[] record, int recordSize){
+        openWriter();
         // here we will support insert new records
         RID rid;
-        // If the cache can no longer hold data, it will be flushed to a file
+        // If current page can no longer hold data, we move to next page
         if(offset + recordSize > pageSize){
-            // Lock the content and then flush the data into the file
-            buf.flip();
-            try(BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(file, true))){
-                // note that this page may not be full, but it doesn't matter
-                byte[] array = buf.array();
-                out.write(array);
-                out.flush();
-            }catch (Exception e) {
-                e.printStackTrace();
-            }
-            page++;
-            offset = 0;
+            // note that this page may not be full, but it doesn't matter
+            nextPage();
         }
-        buf.put(record);
+        if(writeBuffer.remaining() < recordSize){
+            groupCommit();
+        }
+        writeBuffer.put(record, 0, recordSize);
         rid = new RID(page, offset);
         offset += (short) recordSize;
         return rid;
@@ -94,91 +220,87 @@ public class EventStore {
 
     /**
      * this function aims to append a batch of data
+     * a record cannot cross two pages, if a page cannot hold next record, we pad zero
      * @param batchRecords      a batch record
      * @param singleRecordSize  fixed length for a record
      * @return                  success or fail
      */
     public final boolean appendBatchRecords(byte[] batchRecords, int singleRecordSize){
-        long fileSize = getFileSize();
-        int writeSize = batchRecords.length;
-
-        // our code will ensure that either the file size is divisible by the page size,
+        openWriter();
+        // our code will ensure that either a new page is started,
         // or at least one record can be placed on the current page
-        int lastPageRemaining = (int) (pageSize - fileSize % pageSize);
-        if(lastPageRemaining < singleRecordSize){
+        if(pageSize - offset < singleRecordSize){
             throw new RuntimeException("forget padding exception");
         }
 
-        try(BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(file, true))){
-            if(lastPageRemaining >= writeSize){
-                // we can put all bytes
-                if(lastPageRemaining < writeSize + singleRecordSize){
-                    // we need padding zero
-                    byte[] paddingContent = new byte[lastPageRemaining];
-                    System.arraycopy(batchRecords, 0, paddingContent, 0, writeSize);
-                    out.write(paddingContent);
-                }else{
-                    // write all data
-                    out.write(batchRecords);
-                }
-            }else{
-                // please note that we only process the data with a fixed length
-                int pagMaxWrittenSize = pageSize / singleRecordSize * singleRecordSize;
-                // we need to write full current page
-                int firstLen = lastPageRemaining / singleRecordSize * singleRecordSize;
-                int srcPos = 0;
-                byte[] paddingContent = new byte[lastPageRemaining];
-                System.arraycopy(batchRecords, 0, paddingContent, 0, firstLen);
-                out.write(paddingContent);
-                srcPos += firstLen;
-                writeSize -= firstLen;
-
-                while(writeSize >= pageSize){
-                    byte[] writtenBytes = new byte[pageSize];
-                    System.arraycopy(batchRecords, srcPos, writtenBytes, 0, pagMaxWrittenSize);
-                    out.write(writtenBytes);
-
-                    srcPos += pagMaxWrittenSize;
-                    writeSize -= pagMaxWrittenSize;
-                }
-
-                if(writeSize + singleRecordSize > pageSize){
-                    // Please note that we currently do not support recording cross page content
-                    // thus, we need to perform a padding operation
-                    byte[] writtenBytes = new byte[pageSize];
-                    System.arraycopy(batchRecords, srcPos, writtenBytes, 0, writeSize);
-                    out.write(writtenBytes);
-                }else{
-                    byte[] writtenBytes = new byte[writeSize];
-                    System.arraycopy(batchRecords, srcPos, writtenBytes, 0, writeSize);
-                    out.write(writtenBytes);
-                }
+        int recordNum = batchRecords.length / singleRecordSize;
+        for(int i = 0; i < recordNum; i++){
+            if(offset + singleRecordSize > pageSize){
+                nextPage();
             }
-            out.flush();
-        }catch (Exception e) {
-            e.printStackTrace();
+            if(writeBuffer.remaining() < singleRecordSize){
+                groupCommit();
+            }
+            writeBuffer.put(batchRecords, i * singleRecordSize, singleRecordSize);
+            offset += (short) singleRecordSize;
+        }
+        // if last page cannot hold next record, we need padding zero
+        if(offset + singleRecordSize > pageSize){
+            nextPage();
         }
-
         return true;
     }
 
+    /**
+     * append a compressed page, note that a compressed store only contains compressed pages
+     * @param compressedPage    compressed page, it is cleared after writing
+     * @return                  page id
+     */
+    public final int appendPage(CompressedPage compressedPage){
+        openWriter();
+        if(writeBuffer.remaining() < pageSize){
+            groupCommit();
+        }
+        compressedPage.encode(writeBuffer);
+        offset = (short) pageSize;
+        int pageId = page;
+        nextPage();
+        return pageId;
+    }
+
+    // write all cached records into file
     public void forceFlush(){
-        buf.flip();
-        int len = buf.limit();
-        try(BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(file, true))){
-            byte[] array = buf.array();
-            byte[] content = new byte[len];
-            System.arraycopy(array, 0, content, 0, len);
-            out.write(content);
-            out.flush();
-            // clear the buffer
-            buf.clear();
-        }catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
-
-    // this function is too slow
+        if(writeBuffer == null){
+            return;
+        }
+        groupCommit();
+        if(syncPolicy != SyncPolicy.NEVER && writeChannel != null){
+            try{
+                writeChannel.force(false);
+            }catch (IOException e){
+                closeChannel();
+                throw new RuntimeException("cannot sync file '" + file.getName() + "': " + e.getMessage());
+            }
+        }
+    }
+
+    public void close(){
+        forceFlush();
+        closeChannel();
+    }
+
+    private void closeChannel(){
+        if(writeChannel != null){
+            try{
+                writeChannel.close();
+            }catch (IOException e){
+                e.printStackTrace();
+            }
+            writeChannel = null;
+        }
+    }
+
+    // this function is too slow, please read pages through BufferPool
     @Deprecated
     public final MappedByteBuffer getMappedBuffer(int queryPage, long fileSize){
         if(cachePage != queryPage){
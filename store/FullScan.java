@@ -1,20 +1,28 @@
 package store;
 
 
+import org.roaringbitmap.RoaringBitmap;
+import query.CompiledPredicate;
 import query.IndependentPredicate;
+import utils.IntArrayList;
 import utils.Pair;
+import utils.ReplayIntervals;
 
 import java.io.File;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class FullScan {
     // if you have multiple storage nodes, please modify this variable
     // it will scan the files from event_store
     private final String tableName;
     private final String nodeId;
+    // number of scan tasks, if parallelism > 1, scanBasedVarName splits the store files into partitions
+    // please set it before the first scan, because scan tasks run in a shared pool that has parallelism threads
+    public static int parallelism = Runtime.getRuntime().availableProcessors();
+    private static ExecutorService scanPool = null;
 
     public FullScan(String tableName) {
         this.tableName = tableName;
@@ -37,57 +45,104 @@ public class FullScan {
         return ipMap;
     }
 
-    // this function is used for push-down methods
-    public List<byte[]> scan(Map<String, List<String>> ipStringMap){
-        EventSchema schema = EventSchema.getEventSchema(tableName);
-        EventStore store = new EventStore(tableName + nodeId, false);
-        List<byte[]> filteredRecords = new ArrayList<>(8192);
-
-        Map<String, List<Pair<IndependentPredicate, ColumnInfo>>> ipMap = parseIpString(ipStringMap, schema);
+    // compile independent predicates, kernels[i] are the predicates of varNames.get(i)
+    static CompiledPredicate[][] compileIpMap(List<String> varNames, Map<String, List<Pair<IndependentPredicate, ColumnInfo>>> ipMap){
+        CompiledPredicate[][] kernels = new CompiledPredicate[varNames.size()][];
+        for(int i = 0; i < kernels.length; i++){
+            List<Pair<IndependentPredicate, ColumnInfo>> pairs = ipMap.get(varNames.get(i));
+            kernels[i] = new CompiledPredicate[pairs.size()];
+            for(int j = 0; j < pairs.size(); j++){
+                kernels[i][j] = pairs.get(j).getKey().compile(pairs.get(j).getValue());
+            }
+        }
+        return kernels;
+    }
 
-        long fileSize = store.getFileSize();
-        int recordLen = schema.getFixedRecordLen();
-        File file = store.getFile();
-
-        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
-            raf.seek(0);
-            long bytesRead = 0;
-            byte[] buffer = new byte[EventStore.pageSize];
-            while (bytesRead < fileSize) {
-                int read = raf.read(buffer);
-                if (read == -1) break;
-                bytesRead += read;
-                // start process data
-                int curRecordNum = read / recordLen;
-                ByteBuffer bb = ByteBuffer.wrap(buffer);
-                for(int i = 0; i < curRecordNum; i++){
-                    for(Map.Entry<String, List<Pair<IndependentPredicate, ColumnInfo>>> entry : ipMap.entrySet()) {
-                        //IndependentPredicate
-                        List<Pair<IndependentPredicate, ColumnInfo>> ips = entry.getValue();
-                        boolean satisfied = true;
-                        for(Pair<IndependentPredicate, ColumnInfo> pair : ips){
-                            IndependentPredicate ip = pair.getKey();
-                            ColumnInfo columnInfo = pair.getValue();
-                            Object obj = schema.getColumnValue(columnInfo, bb, i * recordLen);
-                            if(!ip.check(obj, columnInfo.getDataType())){
-                                satisfied = false;
-                                break;
-                            }
-                        }
-                        if(satisfied){
-                            byte[] record = new byte[recordLen];
-                            System.arraycopy(buffer, i * recordLen, record, 0, recordLen);
-                            filteredRecords.add(record);
-                            break;
-                        }
-                    }
+    // return the first variable whose predicates are all satisfied, -1 means no variable is satisfied
+    static int satisfiedVarId(CompiledPredicate[][] kernels, ByteBuffer bb, int recordPos){
+        for(int varId = 0; varId < kernels.length; varId++){
+            boolean satisfied = true;
+            for(CompiledPredicate kernel : kernels[varId]){
+                if(!kernel.check(bb, recordPos)){
+                    satisfied = false;
+                    break;
                 }
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+            if(satisfied){
+                return varId;
+            }
+        }
+        return -1;
+    }
+
+    // if no variable can be satisfied in this page, then we skip this page
+    static boolean canSkipPage(ZoneMap zoneMap, int page, Map<String, List<Pair<IndependentPredicate, ColumnInfo>>> ipMap, EventSchema schema){
+        if(zoneMap == null){
+            return false;
+        }
+        for(List<Pair<IndependentPredicate, ColumnInfo>> ips : ipMap.values()){
+            if(zoneMap.mayContain(page, ips, schema)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * bitmap index tells us which pages may contain satisfied records, we jump to the next candidate page
+     * @param candidatePages    candidate pages, null means all pages are candidates
+     * @param basePage          global page id of the first page in this file
+     * @param bytesRead         current position, it is page-aligned
+     * @param endPos            end position
+     * @return                  start position of next candidate page (endPos if there is no candidate page)
+     */
+    private static long nextCandidatePos(RoaringBitmap candidatePages, int basePage, long bytesRead, long endPos){
+        if(candidatePages == null){
+            return bytesRead;
+        }
+        long nextPage = candidatePages.nextValue(basePage + (int) (bytesRead / EventStore.pageSize));
+        return nextPage == -1 ? endPos : Math.min((nextPage - basePage) * EventStore.pageSize, endPos);
+    }
+
+    /**
+     * find the segments that may contain satisfied records
+     * @param ipMap         independent predicates, predicates on EVENTTIME are checked with time range of segment
+     * @param intervals     replay intervals, null means we do not restrict time
+     * @return              candidate segments (in time order)
+     */
+    private List<SegmentManifest.Segment> getCandidateSegments(Map<String, List<Pair<IndependentPredicate, ColumnInfo>>> ipMap, ReplayIntervals intervals){
+        SegmentManifest manifest = SegmentManifest.load(tableName + nodeId);
+        if(intervals != null){
+            intervals.sortAndReconstruct();
+        }
+        List<SegmentManifest.Segment> segments = new ArrayList<>(manifest.getSegments().size());
+        for(SegmentManifest.Segment segment : manifest.getSegments()){
+            if(!canSkipSegment(segment, ipMap, intervals)){
+                segments.add(segment);
+            }
         }
+        return segments;
+    }
 
-        return filteredRecords;
+    // if no variable can be satisfied in the time range of this segment, then we skip this segment
+    static boolean canSkipSegment(SegmentManifest.Segment segment, Map<String, List<Pair<IndependentPredicate, ColumnInfo>>> ipMap, ReplayIntervals intervals){
+        if(intervals != null && !intervals.overlaps(segment.getMinTime(), segment.getMaxTime())){
+            return true;
+        }
+        for(List<Pair<IndependentPredicate, ColumnInfo>> ips : ipMap.values()){
+            boolean mayContain = true;
+            for(Pair<IndependentPredicate, ColumnInfo> pair : ips){
+                IndependentPredicate ip = pair.getKey();
+                if(ip.getAttributeName().equals("EVENTTIME") && !ip.mayHold(segment.getMinTime(), segment.getMaxTime(), pair.getValue().getDataType())){
+                    mayContain = false;
+                    break;
+                }
+            }
+            if(mayContain){
+                return false;
+            }
+        }
+        return true;
     }
 
     // here we will read all events in batch
@@ -111,7 +166,10 @@ public class FullScan {
         }
         int recordNum = 0;
 
-        EventSchema schema = EventSchema.getEventSchema(tableName);
+        EventSchema schema = EventSchema.getRowStorageSchema(tableName, tableName + nodeId);
+        if(schema.isCompressed() || SegmentManifest.load(tableName + nodeId).getSegments().size() > 1){
+            throw new RuntimeException("this function cannot read compressed pages or multiple segments, please call scanBasedVarName");
+        }
         EventStore store = new EventStore(tableName + nodeId, false);
         long fileSize = store.getFileSize();
 
@@ -180,64 +238,471 @@ public class FullScan {
 
     // please note that we require each variable's result cannot overlap
     public EventCache scanBasedVarName(Map<String, List<String>> ipStringMap){
-        EventSchema schema = EventSchema.getEventSchema(tableName);
-        EventStore store = new EventStore(tableName + nodeId, false);
+        return scanBasedVarName(ipStringMap, null);
+    }
 
-        List<byte[]> filteredRecords = new ArrayList<>(1024);
-        Map<String, List<Integer>> varPointers = new HashMap<>(ipStringMap.size() << 2);
+    /**
+     * same as scanBasedVarName(ipStringMap), but we only need the events that fall into replay intervals
+     * (e.g., intervals generated by EventCache.generateReplayIntervals on other nodes),
+     * the segments that do not overlap any interval are skipped, please note that events in candidate segments
+     * are not filtered by intervals, window filter will remove them
+     * @param ipStringMap   independent predicates
+     * @param intervals     replay intervals, null means all segments
+     * @return              event cache
+     */
+    public EventCache scanBasedVarName(Map<String, List<String>> ipStringMap, ReplayIntervals intervals){
+        // if this table has been stored in columnar format, we only read predicate columns
+        if(SegmentManifest.load(tableName + nodeId).isColumnar()){
+            return scanColumnBasedVarName(ipStringMap);
+        }
+        if(parallelism > 1){
+            return parallelScanBasedVarName(ipStringMap, intervals);
+        }
+        EventSchema schema = EventSchema.getRowStorageSchema(tableName, tableName + nodeId);
+
+        RecordArena filteredRecords = new RecordArena(schema.getFixedRecordLen(), 1024);
+        Map<String, IntArrayList> varPointers = new HashMap<>(ipStringMap.size() << 2);
 
         Map<String, List<Pair<IndependentPredicate, ColumnInfo>>> ipMap = parseIpString(ipStringMap, schema);
+        for(String varName : ipMap.keySet()){
+            varPointers.put(varName, new IntArrayList(128));
+        }
+        ZoneMap zoneMap = ZoneMap.load(tableName + nodeId);
+        RoaringBitmap candidatePages = BitmapIndex.getCandidatePages(BitmapIndex.load(tableName + nodeId), ipMap, schema);
 
-        int recordNum = 0;
-        long fileSize = store.getFileSize();
+        List<SegmentManifest.Segment> segments = getCandidateSegments(ipMap, intervals);
+        boolean readAhead = useReadAhead(getPageNum(segments));
+        for(SegmentManifest.Segment segment : segments){
+            File file = segment.getFile();
+            scanPartition(file, 0, file.length(), segment.getStartPage(), schema, ipMap, zoneMap, candidatePages,
+                    readAhead, filteredRecords, varPointers);
+        }
+
+        //for(byte[] record : filteredRecords){
+        //    System.out.println(schema.getRecordStr(record));
+        //}
+
+        return new EventCache(schema, filteredRecords, toPointerArrays(varPointers));
+    }
+
+    // convert growable pointer lists to int arrays, which are used by EventCache
+    static Map<String, int[]> toPointerArrays(Map<String, IntArrayList> varPointers){
+        Map<String, int[]> ans = new HashMap<>(varPointers.size() << 1);
+        for(Map.Entry<String, IntArrayList> entry : varPointers.entrySet()){
+            ans.put(entry.getKey(), entry.getValue().toArray());
+        }
+        return ans;
+    }
+
+    // number of pages of segments
+    static long getPageNum(List<SegmentManifest.Segment> segments){
+        long pageNum = 0;
+        for(SegmentManifest.Segment segment : segments){
+            pageNum += (segment.getFile().length() + EventStore.pageSize - 1) / EventStore.pageSize;
+        }
+        return pageNum;
+    }
+
+    /**
+     * buffer pool cannot cache a large scan (it would flush hot pages), so such a scan uses ReadAheadScanner
+     * please note that we decide it for the whole scan, a segment is always smaller than this threshold
+     * @param pageNum   number of pages that a scan reads (all partitions)
+     * @return          true if this scan should bypass buffer pool
+     */
+    static boolean useReadAhead(long pageNum){
+        return ReadAheadScanner.readAheadDepth > 0 && pageNum > BufferPool.poolPageNum / 4;
+    }
+
+    /**
+     * scan the pages in [startPos, endPos), pointers start from 0
+     * @param file              store file (segment)
+     * @param startPos          start position, it should be page-aligned
+     * @param endPos            end position, it should be page-aligned or file size
+     * @param basePage          global page id of the first page in this file
+     * @param schema            event schema
+     * @param ipMap             independent predicates
+     * @param zoneMap           zone map, can be null
+     * @param candidatePages    candidate pages obtained from bitmap index, null means all pages
+     * @param readAhead         if true, we read pages with ReadAheadScanner instead of buffer pool (see useReadAhead)
+     * @param filteredRecords   output records (arena)
+     * @param varPointers       output pointers
+     */
+    private static void scanPartition(File file, long startPos, long endPos, int basePage, EventSchema schema,
+                                      Map<String, List<Pair<IndependentPredicate, ColumnInfo>>> ipMap, ZoneMap zoneMap,
+                                      RoaringBitmap candidatePages, boolean readAhead, RecordArena filteredRecords, Map<String, IntArrayList> varPointers){
         int recordLen = schema.getFixedRecordLen();
-        File file = store.getFile();
-        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
-            raf.seek(0);
-            long bytesRead = 0;
-            byte[] buffer = new byte[EventStore.pageSize];
-            while (bytesRead < fileSize) {
-                int read = raf.read(buffer);
-                if (read == -1) break;
-                bytesRead += read;
-                // start process data
-                int curRecordNum = read / recordLen;
-                ByteBuffer bb = ByteBuffer.wrap(buffer);
-                for(int i = 0; i < curRecordNum; i++){
-                    for(Map.Entry<String, List<Pair<IndependentPredicate, ColumnInfo>>> entry : ipMap.entrySet()) {
-                        String varName = entry.getKey();
-                        List<Pair<IndependentPredicate, ColumnInfo>> ips = entry.getValue();
-                        boolean satisfied = true;
-                        for(Pair<IndependentPredicate, ColumnInfo> pair : ips){
-                            IndependentPredicate ip = pair.getKey();
-                            ColumnInfo columnInfo = pair.getValue();
-                            Object obj = schema.getColumnValue(columnInfo, bb, i * recordLen);
-                            //Object obj = schema.getColumnValue(columnName, bb, i * recordLen);
-                            if(!ip.check(obj, columnInfo.getDataType())){
-                                satisfied = false;
-                                break;
-                            }
-                        }
-                        if(satisfied){
-                            byte[] record = new byte[recordLen];
-                            System.arraycopy(buffer, i * recordLen, record, 0, recordLen);
-                            filteredRecords.add(record);
-                            varPointers.get(varName).add(recordNum);
-                            recordNum++;
-                            break;
+        // variable i's pointers and compiled predicates are stored in position i
+        List<String> varNames = new ArrayList<>(ipMap.keySet());
+        CompiledPredicate[][] kernels = compileIpMap(varNames, ipMap);
+        IntArrayList[] pointerLists = new IntArrayList[varNames.size()];
+        for(int varId = 0; varId < pointerLists.length; varId++){
+            pointerLists[varId] = varPointers.get(varNames.get(varId));
+        }
+        // compressed page is decoded into row format records, then we use the same kernels
+        CompressedPage compressedPage = schema.isCompressed() ? new CompressedPage(schema) : null;
+        byte[] decodedRows = compressedPage == null ? null : new byte[CompressedPage.getMaxRecordNum() * recordLen];
+        ByteBuffer decodedBuffer = compressedPage == null ? null : ByteBuffer.wrap(decodedRows);
+
+        long pageNum = (endPos - startPos + EventStore.pageSize - 1) / EventStore.pageSize;
+        if(readAhead){
+            // we read large chunks with a dedicated I/O thread and evaluate predicates at the same time
+            int firstPage = (int) (startPos / EventStore.pageSize);
+            boolean[] neededPages = new boolean[(int) pageNum];
+            for(int i = 0; i < neededPages.length; i++){
+                int page = basePage + firstPage + i;
+                neededPages[i] = (candidatePages == null || candidatePages.contains(page)) && !canSkipPage(zoneMap, page, ipMap, schema);
+            }
+            try(ReadAheadScanner scanner = new ReadAheadScanner(file, startPos, endPos, neededPages)){
+                ReadAheadScanner.Chunk chunk;
+                while((chunk = scanner.next()) != null){
+                    for(int pagePos = 0; pagePos < chunk.getLength(); pagePos += EventStore.pageSize){
+                        int localPage = (int) ((chunk.getStartPos() + pagePos) / EventStore.pageSize);
+                        if(neededPages[localPage - firstPage]){
+                            int len = Math.min(EventStore.pageSize, chunk.getLength() - pagePos);
+                            processPage(chunk.getData(), chunk.getBuffer(), pagePos, len, recordLen, compressedPage,
+                                    decodedRows, decodedBuffer, kernels, filteredRecords, pointerLists);
                         }
                     }
+                    scanner.release(chunk);
                 }
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+            return;
         }
 
-        //System.out.println("recordNum: " + recordNum);
-        //for(byte[] record : filteredRecords){
-        //    System.out.println(schema.getRecordStr(record));
-        //}
+        // pages are read through buffer pool, then repeated queries do not read file again
+        BufferPool pool = BufferPool.getSharedPool();
+        int fileId = pool.register(file);
+        long bytesRead = startPos;
+        while (bytesRead < endPos) {
+            long nextPos = nextCandidatePos(candidatePages, basePage, bytesRead, endPos);
+            if(nextPos != bytesRead){
+                bytesRead = nextPos;
+                continue;
+            }
+            int localPage = (int) (bytesRead / EventStore.pageSize);
+            if(canSkipPage(zoneMap, basePage + localPage, ipMap, schema)){
+                bytesRead = Math.min(bytesRead + EventStore.pageSize, endPos);
+                continue;
+            }
+            BufferPool.Frame frame = pool.pin(fileId, localPage);
+            int read = (int) Math.min(frame.getLength(), endPos - bytesRead);
+            if(read <= 0){
+                // bytesRead < endPos <= file length, so this page should not be empty
+                pool.unpin(frame);
+                throw new RuntimeException("page " + localPage + " of file '" + file.getName() + "' is empty, this file may be changed during scan");
+            }
+            bytesRead += read;
+            processPage(frame.getData(), frame.getBuffer(), 0, read, recordLen, compressedPage,
+                    decodedRows, decodedBuffer, kernels, filteredRecords, pointerLists);
+            pool.unpin(frame);
+        }
+    }
+
+    /**
+     * evaluate predicates on the records of a page, satisfied records are copied into arena
+     * @param data              bytes that hold this page (buffer pool frame or read-ahead chunk)
+     * @param buffer            byte buffer that wraps data
+     * @param pagePos           start position of this page in data
+     * @param length            valid bytes of this page
+     * @param recordLen         record length
+     * @param compressedPage    null if pages are not compressed
+     * @param decodedRows       decoded records of a compressed page
+     * @param decodedBuffer     byte buffer that wraps decodedRows
+     * @param kernels           compiled predicates
+     * @param filteredRecords   output records (arena)
+     * @param pointerLists      output pointers of each variable
+     */
+    private static void processPage(byte[] data, ByteBuffer buffer, int pagePos, int length, int recordLen, CompressedPage compressedPage,
+                                    byte[] decodedRows, ByteBuffer decodedBuffer, CompiledPredicate[][] kernels,
+                                    RecordArena filteredRecords, IntArrayList[] pointerLists){
+        if(compressedPage == null){
+            evaluateRecords(data, buffer, pagePos, length / recordLen, recordLen, kernels, filteredRecords, pointerLists);
+        }else{
+            int recordNum = compressedPage.decode(buffer, pagePos, decodedRows);
+            evaluateRecords(decodedRows, decodedBuffer, 0, recordNum, recordLen, kernels, filteredRecords, pointerLists);
+        }
+    }
+
+    /**
+     * evaluate predicates on row format records, satisfied records are copied into arena
+     * @param rows              bytes that hold records
+     * @param bb                byte buffer that wraps rows
+     * @param startPos          position of first record
+     * @param recordNum         number of records
+     * @param recordLen         record length
+     * @param kernels           compiled predicates
+     * @param filteredRecords   output records (arena)
+     * @param pointerLists      output pointers of each variable
+     */
+    static void evaluateRecords(byte[] rows, ByteBuffer bb, int startPos, int recordNum, int recordLen, CompiledPredicate[][] kernels,
+                                RecordArena filteredRecords, IntArrayList[] pointerLists){
+        for(int i = 0; i < recordNum; i++){
+            int recordPos = startPos + i * recordLen;
+            int varId = satisfiedVarId(kernels, bb, recordPos);
+            if(varId != -1){
+                // copy record from page into arena directly
+                int pointer = filteredRecords.add(rows, recordPos);
+                pointerLists[varId].add(pointer);
+            }
+        }
+    }
+
+    /**
+     * split the store file into page-aligned partitions and scan them with the shared scan pool,
+     * records are stored in timestamp order, thus we merge partitions in file order
+     * @param ipStringMap   independent predicates
+     * @return              event cache
+     */
+    public EventCache parallelScanBasedVarName(Map<String, List<String>> ipStringMap){
+        return parallelScanBasedVarName(ipStringMap, null);
+    }
+
+    /**
+     * same as parallelScanBasedVarName(ipStringMap), but segments that do not overlap replay intervals are skipped
+     * @param ipStringMap   independent predicates
+     * @param intervals     replay intervals, null means all segments
+     * @return              event cache
+     */
+    public EventCache parallelScanBasedVarName(Map<String, List<String>> ipStringMap, ReplayIntervals intervals){
+        EventSchema schema = EventSchema.getRowStorageSchema(tableName, tableName + nodeId);
+        ZoneMap zoneMap = ZoneMap.load(tableName + nodeId);
+        Map<String, List<Pair<IndependentPredicate, ColumnInfo>>> ipMap = parseIpString(ipStringMap, schema);
+        // all tasks share the candidate pages, they only read it
+        RoaringBitmap candidatePages = BitmapIndex.getCandidatePages(BitmapIndex.load(tableName + nodeId), ipMap, schema);
+        List<SegmentManifest.Segment> segments = getCandidateSegments(ipMap, intervals);
+
+        boolean readAhead = useReadAhead(getPageNum(segments));
+        List<ScanTask> tasks = new ArrayList<>(parallelism);
+        List<Future<?>> futures = new ArrayList<>(parallelism);
+        for(List<ScanRange> ranges : splitSegments(segments)){
+            // each task parses its own predicates, because IndependentPredicate caches converted value
+            ScanTask task = new ScanTask(ranges, schema, parseIpString(ipStringMap, schema), zoneMap, candidatePages, readAhead);
+            tasks.add(task);
+            futures.add(getScanPool().submit(task));
+        }
+        for(Future<?> future : futures){
+            waitFor(future);
+        }
+
+        // merge, pointers of later partitions need to add the number of previous records
+        int sumRecordNum = 0;
+        Map<String, Integer> varRecordNum = new HashMap<>(ipStringMap.size() << 1);
+        for(String varName : ipStringMap.keySet()){
+            varRecordNum.put(varName, 0);
+        }
+        for(ScanTask task : tasks){
+            sumRecordNum += task.filteredRecords.size();
+            for(Map.Entry<String, IntArrayList> entry : task.varPointers.entrySet()){
+                varRecordNum.put(entry.getKey(), varRecordNum.get(entry.getKey()) + entry.getValue().size());
+            }
+        }
+        RecordArena filteredRecords = new RecordArena(schema.getFixedRecordLen(), sumRecordNum);
+        Map<String, int[]> varPointers = new HashMap<>(ipStringMap.size() << 2);
+        Map<String, Integer> varOffsets = new HashMap<>(ipStringMap.size() << 1);
+        for(String varName : ipStringMap.keySet()){
+            varPointers.put(varName, new int[varRecordNum.get(varName)]);
+            varOffsets.put(varName, 0);
+        }
+        for(ScanTask task : tasks){
+            int base = filteredRecords.size();
+            filteredRecords.append(task.filteredRecords);
+            for(Map.Entry<String, IntArrayList> entry : task.varPointers.entrySet()){
+                String varName = entry.getKey();
+                int[] pointers = varPointers.get(varName);
+                int offset = varOffsets.get(varName);
+                IntArrayList partPointers = entry.getValue();
+                for(int i = 0; i < partPointers.size(); i++){
+                    pointers[offset++] = base + partPointers.get(i);
+                }
+                varOffsets.put(varName, offset);
+            }
+        }
 
         return new EventCache(schema, filteredRecords, varPointers);
     }
+
+    /**
+     * split segments into at most parallelism partitions that have the same number of pages,
+     * a partition may cross several segments, partitions and their ranges are in file order
+     * @param segments  candidate segments
+     * @return          partitions
+     */
+    static List<List<ScanRange>> splitSegments(List<SegmentManifest.Segment> segments){
+        long pageNum = getPageNum(segments);
+        long partitionPageNum = Math.max(1, (pageNum + parallelism - 1) / parallelism);
+
+        List<List<ScanRange>> partitions = new ArrayList<>(parallelism);
+        List<ScanRange> partition = new ArrayList<>(4);
+        long partitionSize = 0;
+        for(SegmentManifest.Segment segment : segments){
+            File file = segment.getFile();
+            long fileSize = file.length();
+            long segmentPageNum = (fileSize + EventStore.pageSize - 1) / EventStore.pageSize;
+            long startPage = 0;
+            while(startPage < segmentPageNum){
+                long len = Math.min(segmentPageNum - startPage, partitionPageNum - partitionSize);
+                long endPos = Math.min(fileSize, (startPage + len) * EventStore.pageSize);
+                partition.add(new ScanRange(file, startPage * EventStore.pageSize, endPos, segment.getStartPage()));
+                startPage += len;
+                partitionSize += len;
+                if(partitionSize == partitionPageNum){
+                    partitions.add(partition);
+                    partition = new ArrayList<>(4);
+                    partitionSize = 0;
+                }
+            }
+        }
+        if(!partition.isEmpty()){
+            partitions.add(partition);
+        }
+        return partitions;
+    }
+
+    // scan tasks of all queries share this pool, so concurrent queries do not create threads for each partition
+    static synchronized ExecutorService getScanPool(){
+        if(scanPool == null){
+            scanPool = Executors.newFixedThreadPool(Math.max(1, parallelism), r -> {
+                Thread thread = new Thread(r, "scan-thread");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return scanPool;
+    }
+
+    // wait for a scan task, the exception of this task is thrown to the query
+    static <T> T waitFor(Future<T> future){
+        try{
+            return future.get();
+        }catch (ExecutionException e){
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    // a page-aligned range [startPos, endPos) of a segment file
+    static class ScanRange {
+        final File file;
+        final long startPos;
+        final long endPos;
+        final int basePage;
+
+        ScanRange(File file, long startPos, long endPos, int basePage){
+            this.file = file;
+            this.startPos = startPos;
+            this.endPos = endPos;
+            this.basePage = basePage;
+        }
+    }
+
+    static class ScanTask implements Runnable {
+        private final List<ScanRange> ranges;
+        private final EventSchema schema;
+        private final Map<String, List<Pair<IndependentPredicate, ColumnInfo>>> ipMap;
+        private final ZoneMap zoneMap;
+        private final RoaringBitmap candidatePages;
+        private final boolean readAhead;
+        final RecordArena filteredRecords;
+        final Map<String, IntArrayList> varPointers;
+
+        ScanTask(List<ScanRange> ranges, EventSchema schema,
+                 Map<String, List<Pair<IndependentPredicate, ColumnInfo>>> ipMap, ZoneMap zoneMap, RoaringBitmap candidatePages,
+                 boolean readAhead){
+            this.ranges = ranges;
+            this.schema = schema;
+            this.ipMap = ipMap;
+            this.zoneMap = zoneMap;
+            this.candidatePages = candidatePages;
+            this.readAhead = readAhead;
+            filteredRecords = new RecordArena(schema.getFixedRecordLen(), 1024);
+            varPointers = new HashMap<>(ipMap.size() << 1);
+            for(String varName : ipMap.keySet()){
+                varPointers.put(varName, new IntArrayList(128));
+            }
+        }
+
+        @Override
+        public void run() {
+            for(ScanRange range : ranges){
+                scanPartition(range.file, range.startPos, range.endPos, range.basePage, schema, ipMap, zoneMap, candidatePages,
+                        readAhead, filteredRecords, varPointers);
+            }
+        }
+    }
+
+    /**
+     * scan column files, we only touch the columns that appear in independent predicates,
+     * then we materialise the qualifying rows (row format) so that EventCache does not change
+     * please note that we require each variable's result cannot overlap
+     * columnar table does not have segments, zone map and bitmap index, so this function reads all values of
+     * predicate columns in one thread, it ignores replay intervals (window filter removes the events) and parallelism
+     * @param ipStringMap   independent predicates
+     * @return              event cache
+     */
+    public EventCache scanColumnBasedVarName(Map<String, List<String>> ipStringMap){
+        EventSchema schema = EventSchema.getStorageSchema(tableName, ColumnStore.getDictionaryFile(tableName + nodeId));
+        ColumnStore store = new ColumnStore(tableName + nodeId, schema, false);
+
+        RecordArena filteredRecords = new RecordArena(schema.getFixedRecordLen(), 1024);
+        Map<String, IntArrayList> varPointers = new HashMap<>(ipStringMap.size() << 2);
+
+        // in column files, each value starts at position 0 of its slot
+        Map<String, List<Pair<IndependentPredicate, ColumnInfo>>> ipMap = parseIpString(ipStringMap, schema);
+        List<String> varNames = new ArrayList<>(ipMap.keySet());
+        ColumnPredicate[][] columnPredicates = new ColumnPredicate[varNames.size()][];
+        IntArrayList[] pointerLists = new IntArrayList[varNames.size()];
+        for(int varId = 0; varId < varNames.size(); varId++){
+            List<Pair<IndependentPredicate, ColumnInfo>> pairs = ipMap.get(varNames.get(varId));
+            columnPredicates[varId] = new ColumnPredicate[pairs.size()];
+            for(int i = 0; i < pairs.size(); i++){
+                IndependentPredicate ip = pairs.get(i).getKey();
+                ColumnInfo columnInfo = pairs.get(i).getValue();
+                columnPredicates[varId][i] = new ColumnPredicate(ip, columnInfo, store.getColumnBuffer(ip.getAttributeName()));
+            }
+            pointerLists[varId] = new IntArrayList(128);
+            varPointers.put(varNames.get(varId), pointerLists[varId]);
+        }
+
+        // reuse one byte array to assemble records, then copy it into arena
+        byte[] record = new byte[schema.getFixedRecordLen()];
+        int storedRecordNum = store.getRecordNum();
+        for(int rowId = 0; rowId < storedRecordNum; rowId++){
+            for(int varId = 0; varId < columnPredicates.length; varId++){
+                boolean satisfied = true;
+                for(ColumnPredicate cp : columnPredicates[varId]){
+                    int pos = ColumnStore.getValuePos(rowId, cp.valueNumPerPage, cp.valueLen);
+                    if(!cp.kernel.check(cp.buffer, pos)){
+                        satisfied = false;
+                        break;
+                    }
+                }
+                if(satisfied){
+                    store.getRecord(rowId, record);
+                    pointerLists[varId].add(filteredRecords.add(record, 0));
+                    break;
+                }
+            }
+        }
+
+        return new EventCache(schema, filteredRecords, toPointerArrays(varPointers));
+    }
+
+    // independent predicate that reads values from a mapped column file
+    static class ColumnPredicate {
+        final CompiledPredicate kernel;
+        final MappedByteBuffer buffer;
+        final int valueLen;
+        final int valueNumPerPage;
+
+        ColumnPredicate(IndependentPredicate ip, ColumnInfo rowColumnInfo, MappedByteBuffer buffer){
+            // a column file only stores one column, thus start position is 0
+            this.kernel = ip.compile(new ColumnInfo(0, rowColumnInfo.getOffset(), rowColumnInfo.getDataType(), rowColumnInfo.getDictionary()));
+            this.buffer = buffer;
+            this.valueLen = rowColumnInfo.getOffset();
+            this.valueNumPerPage = ColumnStore.getValueNumPerPage(valueLen);
+        }
+    }
 }
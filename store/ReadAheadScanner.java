@@ -0,0 +1,185 @@
+package store;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * asynchronous read-ahead for large scans
+ * an I/O thread reads page-aligned chunks (chunkSize bytes) into a ring of readAheadDepth buffers,
+ * the scan thread evaluates predicates on a filled chunk while the I/O thread reads next chunks,
+ * so that reading and predicate evaluation overlap
+ * ring: empty chunks wait in freeChunks, filled chunks wait in filledChunks (in file order)
+ * usage: while((chunk = scanner.next()) != null){ ... scanner.release(chunk); } scanner.close();
+ * FullScan and SharedScan use it when a scan (all candidate segments) is too large to be cached by BufferPool
+ * (then pool would be flushed by this scan)
+ */
+public class ReadAheadScanner implements Closeable {
+    public static int readAheadDepth = 4;               // number of chunks in the ring, 0 means we do not use read-ahead
+    public static int chunkSize = 1024 * 1024;          // chunk size (1MB), it is rounded to a multiple of page size
+
+    private final BlockingQueue<Chunk> freeChunks;
+    private final BlockingQueue<Chunk> filledChunks;
+    private final IOThread ioThread;
+    private volatile IOException ioException;
+    private boolean finished;
+
+    public static class Chunk {
+        private final byte[] data;
+        private final ByteBuffer buffer;
+        private long startPos;                          // position of this chunk in file
+        private int length;                             // valid bytes, length = -1 means there is no more chunk
+
+        Chunk(int size){
+            data = new byte[size];
+            buffer = ByteBuffer.wrap(data);
+        }
+
+        public byte[] getData(){
+            return data;
+        }
+
+        public ByteBuffer getBuffer(){
+            return buffer;
+        }
+
+        public long getStartPos(){
+            return startPos;
+        }
+
+        public int getLength(){
+            return length;
+        }
+    }
+
+    /**
+     * start reading [startPos, endPos) of a file
+     * @param file          store file (segment)
+     * @param startPos      start position, it should be page-aligned
+     * @param endPos        end position, it should be page-aligned or file size
+     * @param neededPages   neededPages[i] is false if page (startPos / pageSize + i) can be skipped,
+     *                      chunks without needed pages are not read, null means all pages are needed
+     */
+    public ReadAheadScanner(File file, long startPos, long endPos, boolean[] neededPages){
+        int depth = Math.max(readAheadDepth, 1);
+        int size = Math.max(1, chunkSize / EventStore.pageSize) * EventStore.pageSize;
+        freeChunks = new ArrayBlockingQueue<>(depth);
+        // one more slot for the end marker
+        filledChunks = new ArrayBlockingQueue<>(depth + 1);
+        for(int i = 0; i < depth; i++){
+            freeChunks.add(new Chunk(size));
+        }
+        finished = false;
+        ioThread = new IOThread(file, startPos, endPos, neededPages, size);
+        ioThread.start();
+    }
+
+    /**
+     * wait for next chunk
+     * @return  next filled chunk (in file order), null if all chunks have been read
+     */
+    public Chunk next(){
+        if(finished){
+            return null;
+        }
+        Chunk chunk;
+        try{
+            chunk = filledChunks.take();
+        }catch (InterruptedException e){
+            throw new RuntimeException(e.getMessage());
+        }
+        if(chunk.length == -1){
+            finished = true;
+            if(ioException != null){
+                throw new RuntimeException(ioException.getMessage());
+            }
+            return null;
+        }
+        return chunk;
+    }
+
+    // give a chunk back to I/O thread, please do not read this chunk after release
+    public void release(Chunk chunk){
+        freeChunks.add(chunk);
+    }
+
+    @Override
+    public void close(){
+        ioThread.interrupt();
+        try{
+            ioThread.join();
+        }catch (InterruptedException e){
+            e.printStackTrace();
+        }
+    }
+
+    class IOThread extends Thread {
+        private final File file;
+        private final long startPos;
+        private final long endPos;
+        private final boolean[] neededPages;
+        private final int size;
+
+        IOThread(File file, long startPos, long endPos, boolean[] neededPages, int size){
+            this.file = file;
+            this.startPos = startPos;
+            this.endPos = endPos;
+            this.neededPages = neededPages;
+            this.size = size;
+        }
+
+        // find the first needed page whose position >= pos, return its position (endPos if there is no needed page)
+        private long nextNeededPos(long pos){
+            if(neededPages == null){
+                return pos;
+            }
+            int firstPage = (int) (startPos / EventStore.pageSize);
+            for(int i = (int) (pos / EventStore.pageSize) - firstPage; i < neededPages.length; i++){
+                if(neededPages[i]){
+                    return Math.max(pos, (long) (firstPage + i) * EventStore.pageSize);
+                }
+            }
+            return endPos;
+        }
+
+        @Override
+        public void run() {
+            try(RandomAccessFile raf = new RandomAccessFile(file, "r")){
+                FileChannel channel = raf.getChannel();
+                long pos = nextNeededPos(startPos);
+                while(pos < endPos){
+                    Chunk chunk = freeChunks.take();
+                    int len = (int) Math.min(size, endPos - pos);
+                    ByteBuffer dst = chunk.buffer;
+                    dst.clear();
+                    dst.limit(len);
+                    while(dst.hasRemaining()){
+                        if(channel.read(dst, pos + dst.position()) == -1){
+                            break;
+                        }
+                    }
+                    chunk.startPos = pos;
+                    chunk.length = dst.position();
+                    filledChunks.put(chunk);
+                    if(chunk.length < len){
+                        break;
+                    }
+                    pos = nextNeededPos(pos + len);
+                }
+            }catch (IOException e){
+                ioException = e;
+            }catch (InterruptedException e){
+                // scanner is closed
+                return;
+            }
+            Chunk endMarker = new Chunk(0);
+            endMarker.length = -1;
+            filledChunks.add(endMarker);
+        }
+    }
+}
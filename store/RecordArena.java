@@ -0,0 +1,118 @@
+package store;
+
+import java.nio.ByteBuffer;
+
+/**
+ * off-heap arena that stores fixed length records contiguously (direct byte buffer),
+ * a record is addressed by its pointer, and its offset in arena is pointer * recordLen
+ * compared with List<byte[]>, it avoids millions of small objects in heap
+ * note that one arena cannot exceed 2GB, and the direct memory is released when the arena is collected
+ */
+public class RecordArena {
+    private final int recordLen;
+    private ByteBuffer arena;
+    private int recordNum;
+
+    public RecordArena(int recordLen, int initialRecordNum){
+        this.recordLen = recordLen;
+        arena = ByteBuffer.allocateDirect(Math.max(1, initialRecordNum) * recordLen);
+        recordNum = 0;
+    }
+
+    public int size(){
+        return recordNum;
+    }
+
+    public int getRecordLen(){
+        return recordLen;
+    }
+
+    private void ensureCapacity(int newRecordNum){
+        long needBytes = (long) newRecordNum * recordLen;
+        if(needBytes <= arena.capacity()){
+            return;
+        }
+        long maxBytes = Integer.MAX_VALUE / recordLen * (long) recordLen;
+        if(needBytes > maxBytes){
+            throw new RuntimeException("record arena is full, record number: " + newRecordNum);
+        }
+        int newCapacity = (int) Math.min(maxBytes, Math.max(needBytes, (long) arena.capacity() << 1));
+        ByteBuffer newArena = ByteBuffer.allocateDirect(newCapacity);
+        ByteBuffer oldContent = arena.duplicate();
+        oldContent.position(0);
+        oldContent.limit(recordNum * recordLen);
+        newArena.put(oldContent);
+        arena = newArena;
+    }
+
+    /**
+     * copy a record into arena
+     * @param src       source byte array (e.g., page buffer)
+     * @param srcPos    start position of record
+     * @return          pointer of this record
+     */
+    public final int add(byte[] src, int srcPos){
+        ensureCapacity(recordNum + 1);
+        arena.position(recordNum * recordLen);
+        arena.put(src, srcPos, recordLen);
+        return recordNum++;
+    }
+
+    // append all records of another arena, pointers of other arena need to add the size of this arena
+    public void append(RecordArena other){
+        ensureCapacity(recordNum + other.recordNum);
+        ByteBuffer otherContent = other.arena.duplicate();
+        otherContent.position(0);
+        otherContent.limit(other.recordNum * recordLen);
+        arena.position(recordNum * recordLen);
+        arena.put(otherContent);
+        recordNum += other.recordNum;
+    }
+
+    public final long getLong(int pointer, int startPos){
+        return arena.getLong(pointer * recordLen + startPos);
+    }
+
+    // return a copy of record, please use it only when you need a byte array
+    public byte[] get(int pointer){
+        byte[] record = new byte[recordLen];
+        arena.position(pointer * recordLen);
+        arena.get(record);
+        return record;
+    }
+
+    // write a record into buffer
+    public final void copyTo(int pointer, ByteBuffer dst){
+        ByteBuffer src = arena.duplicate();
+        int offset = pointer * recordLen;
+        src.position(offset);
+        src.limit(offset + recordLen);
+        dst.put(src);
+    }
+
+    // write a record in declared format (see EventSchema.decodeRecord)
+    public final void decodeTo(int pointer, EventSchema schema, ByteBuffer dst){
+        schema.decodeRecord(arena, pointer * recordLen, dst);
+    }
+
+    /**
+     * compaction: move a record to a smaller position, then call truncate
+     * @param fromPointer   original pointer
+     * @param toPointer     new pointer (toPointer <= fromPointer)
+     */
+    public void move(int fromPointer, int toPointer){
+        if(fromPointer == toPointer){
+            return;
+        }
+        ByteBuffer src = arena.duplicate();
+        int offset = fromPointer * recordLen;
+        src.position(offset);
+        src.limit(offset + recordLen);
+        arena.position(toPointer * recordLen);
+        arena.put(src);
+    }
+
+    public void truncate(int newRecordNum){
+        recordNum = newRecordNum;
+    }
+}
@@ -0,0 +1,231 @@
+package store;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * segment manifest records the segments of a store and the time range (EVENTTIME) of each segment
+ * it is built at ingest time and stored next to the store files: event_store/STORENAME.manifest
+ * FullScan skips the segments whose time range cannot overlap the query (time predicates or replay intervals),
+ * and retention only needs to delete old segment files and rewrite this small file
+ * it also records the physical format of a table (row pages, compressed row pages or column files),
+ * readers must not take it from json file (json file may be changed later) or from the files in event_store
+ * columnar table does not have segments, its manifest only records the format
+ * file format: [FORMAT_VERSION (int)][page format (int)][segmentNum (int)]
+ * [(segment id (int), start page (int), page number (int), min time (long), max time (long)) * segmentNum]
+ * old manifest file does not have the first two ints (it starts with segmentNum), its pages are not compressed
+ */
+public class SegmentManifest {
+    // negative, so that we can distinguish it from segmentNum of old manifest file
+    private static final int FORMAT_VERSION = -2;
+    // page formats, ROW_PAGE and COMPRESSED_PAGE are same as the compressed flag (0/1) of the first manifest version
+    public static final int ROW_PAGE = 0;
+    public static final int COMPRESSED_PAGE = 1;
+    public static final int COLUMN_PAGE = 2;
+    private final String storeName;
+    private final List<Segment> segments;
+    private final int pageFormat;
+
+    public static class Segment {
+        private final int id;                   // -1 means the store is not split
+        private final int startPage;            // global page id of first page
+        private final int pageNum;
+        private final long minTime;
+        private final long maxTime;
+        private final File file;
+
+        Segment(String storeName, int id, int startPage, int pageNum, long minTime, long maxTime){
+            this.id = id;
+            this.startPage = startPage;
+            this.pageNum = pageNum;
+            this.minTime = minTime;
+            this.maxTime = maxTime;
+            file = EventStore.getSegmentFile(storeName, id);
+        }
+
+        public int getId(){
+            return id;
+        }
+
+        public int getStartPage(){
+            return startPage;
+        }
+
+        public int getPageNum(){
+            return pageNum;
+        }
+
+        public long getMinTime(){
+            return minTime;
+        }
+
+        public long getMaxTime(){
+            return maxTime;
+        }
+
+        public File getFile(){
+            return file;
+        }
+
+        @Override
+        public String toString(){
+            return "segment " + id + " pages [" + startPage + "," + (startPage + pageNum) + ") time [" + minTime + "," + maxTime + "]";
+        }
+    }
+
+    private SegmentManifest(String storeName, List<Segment> segments, int pageFormat){
+        this.storeName = storeName.toUpperCase();
+        this.segments = segments;
+        this.pageFormat = pageFormat;
+    }
+
+    public List<Segment> getSegments(){
+        return segments;
+    }
+
+    // if true, store files use compressed pages (see CompressedPage)
+    public boolean isCompressed(){
+        return pageFormat == COMPRESSED_PAGE;
+    }
+
+    // if true, this table is stored in column files (see ColumnStore), it does not have segments
+    public boolean isColumnar(){
+        return pageFormat == COLUMN_PAGE;
+    }
+
+    public static File getManifestFile(String storeName){
+        String storePath = System.getProperty("user.dir") + File.separator + "event_store";
+        return new File(storePath + File.separator + storeName.toUpperCase() + ".manifest");
+    }
+
+    /**
+     * build manifest after ingestion, segments are split by EventStore.segmentPageNum
+     * @param storeName     store name
+     * @param zoneMap       zone map of this store, it knows the time range of each page
+     * @param schema        storage schema, it decides page format
+     * @return              segment manifest
+     */
+    public static SegmentManifest create(String storeName, ZoneMap zoneMap, EventSchema schema){
+        int pageNum = zoneMap.getPageNum();
+        int segmentPageNum = EventStore.segmentPageNum > 0 ? EventStore.segmentPageNum : Math.max(pageNum, 1);
+        List<Segment> segments = new ArrayList<>(pageNum / segmentPageNum + 1);
+        for(int startPage = 0; startPage < pageNum; startPage += segmentPageNum){
+            int segmentId = EventStore.segmentPageNum > 0 ? startPage / segmentPageNum : -1;
+            int endPage = Math.min(pageNum, startPage + segmentPageNum);
+            double[] range = zoneMap.getRange("EVENTTIME", startPage, endPage, schema);
+            // if this table does not have timestamp column, we cannot skip any segment
+            long minTime = range == null ? Long.MIN_VALUE : (long) range[0];
+            long maxTime = range == null ? Long.MAX_VALUE : (long) range[1];
+            segments.add(new Segment(storeName, segmentId, startPage, endPage - startPage, minTime, maxTime));
+        }
+        return new SegmentManifest(storeName, segments, schema.isCompressed() ? COMPRESSED_PAGE : ROW_PAGE);
+    }
+
+    /**
+     * build manifest after columnar ingestion
+     * @param storeName     store name
+     * @return              segment manifest that does not have segments
+     */
+    public static SegmentManifest createColumnar(String storeName){
+        return new SegmentManifest(storeName, new ArrayList<>(0), COLUMN_PAGE);
+    }
+
+    public void store(){
+        ByteBuffer buffer = ByteBuffer.allocate(12 + segments.size() * 28);
+        buffer.putInt(FORMAT_VERSION);
+        buffer.putInt(pageFormat);
+        buffer.putInt(segments.size());
+        for(Segment segment : segments){
+            buffer.putInt(segment.id);
+            buffer.putInt(segment.startPage);
+            buffer.putInt(segment.pageNum);
+            buffer.putLong(segment.minTime);
+            buffer.putLong(segment.maxTime);
+        }
+        buffer.flip();
+        try(FileChannel channel = new FileOutputStream(getManifestFile(storeName), false).getChannel()){
+            while(buffer.hasRemaining()){
+                channel.write(buffer);
+            }
+        }catch (IOException e){
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * read manifest from disk, if it does not exist (old store),
+     * we regard STORENAME.store as one segment that may contain any timestamp, and its pages are not compressed,
+     * if STORENAME.store does not exist either, an old columnar table is recognized by its column directory
+     * @param storeName     store name
+     * @return              segment manifest
+     */
+    public static SegmentManifest load(String storeName){
+        File file = getManifestFile(storeName);
+        if(!file.exists()){
+            List<Segment> segments = new ArrayList<>(1);
+            File storeFile = EventStore.getSegmentFile(storeName, -1);
+            if(storeFile.exists()){
+                int pageNum = (int) ((storeFile.length() + EventStore.pageSize - 1) / EventStore.pageSize);
+                segments.add(new Segment(storeName, -1, 0, pageNum, Long.MIN_VALUE, Long.MAX_VALUE));
+            }else if(ColumnStore.exists(storeName)){
+                return createColumnar(storeName);
+            }
+            return new SegmentManifest(storeName, segments, ROW_PAGE);
+        }
+        try(RandomAccessFile raf = new RandomAccessFile(file, "r")){
+            ByteBuffer buffer = ByteBuffer.allocate((int) raf.length());
+            FileChannel channel = raf.getChannel();
+            while(buffer.hasRemaining() && channel.read(buffer) != -1){
+                // read whole file
+            }
+            buffer.flip();
+            int segmentNum = buffer.getInt();
+            int pageFormat = ROW_PAGE;
+            if(segmentNum == FORMAT_VERSION){
+                pageFormat = buffer.getInt();
+                segmentNum = buffer.getInt();
+            }else if(segmentNum < 0){
+                throw new RuntimeException("unknown format of manifest file: '" + file.getName() + "', please store this table again");
+            }
+            List<Segment> segments = new ArrayList<>(segmentNum);
+            for(int i = 0; i < segmentNum; i++){
+                int id = buffer.getInt();
+                int startPage = buffer.getInt();
+                int pageNum = buffer.getInt();
+                long minTime = buffer.getLong();
+                long maxTime = buffer.getLong();
+                segments.add(new Segment(storeName, id, startPage, pageNum, minTime, maxTime));
+            }
+            return new SegmentManifest(storeName, segments, pageFormat);
+        }catch (IOException e){
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    /**
+     * retention: delete the segments whose events are all earlier than a timestamp
+     * page ids of other segments do not change, so zone map and bitmap index are still valid
+     * @param timestamp     events whose timestamp < timestamp can be removed
+     * @return              number of deleted segments
+     */
+    public int dropSegmentsBefore(long timestamp){
+        List<Segment> retainedSegments = new ArrayList<>(segments.size());
+        int dropNum = 0;
+        for(Segment segment : segments){
+            if(segment.maxTime < timestamp){
+                BufferPool.invalidateSharedPool(segment.file);
+                System.out.println(segment + " is out of date, we will delete file: '" + segment.file.getName() + "', flag: " + segment.file.delete());
+                dropNum++;
+            }else{
+                retainedSegments.add(segment);
+            }
+        }
+        segments.clear();
+        segments.addAll(retainedSegments);
+        store();
+        return dropNum;
+    }
+}
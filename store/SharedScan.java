@@ -0,0 +1,287 @@
+package store;
+
+import org.roaringbitmap.RoaringBitmap;
+import query.CompiledPredicate;
+import query.IndependentPredicate;
+import utils.IntArrayList;
+import utils.Pair;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * shared scan evaluates the independent predicates of several queries in one pass over a store,
+ * each page is read (and decoded) once, then we evaluate every query that may be satisfied in this page,
+ * finally each query has its own EventCache (same as FullScan.scanBasedVarName)
+ * usage 1: sharedScan.register(ipStringMap) * N, then sharedScan.execute()
+ * usage 2: SharedScan.scanBasedVarName(tableName, ipStringMap) is called by concurrent RPC requests,
+ * a request on an idle table starts scanning at once, while a table is being scanned, new requests are queued,
+ * when the running scan finishes, all queued requests share one scan. thus each table has at most one running scan
+ * please note that shared scan uses one thread, columnar tables are scanned by each query separately
+ */
+public class SharedScan {
+    private static final Map<String, SharedScan> pendingScans = new HashMap<>(8);     // queued requests of each table
+    private static final Set<String> runningTables = new HashSet<>(8);                // guarded by pendingScans
+
+    private final String tableName;
+    private final String nodeId;
+    private final List<Map<String, List<String>>> ipStringMaps;
+    private List<EventCache> results;
+    private RuntimeException exception;
+
+    public SharedScan(String tableName){
+        this.tableName = tableName;
+        nodeId = "";
+        ipStringMaps = new ArrayList<>(8);
+        results = null;
+        exception = null;
+    }
+
+    /**
+     * register a query
+     * @param ipStringMap   independent predicates of this query
+     * @return              query id, it is the position of this query's EventCache in the result of execute()
+     */
+    public synchronized int register(Map<String, List<String>> ipStringMap){
+        if(results != null){
+            throw new RuntimeException("shared scan has been executed, we cannot register new query");
+        }
+        ipStringMaps.add(ipStringMap);
+        return ipStringMaps.size() - 1;
+    }
+
+    /**
+     * concurrent requests on the same table share one scan
+     * @param tableName     table name
+     * @param ipStringMap   independent predicates
+     * @return              event cache of this query
+     */
+    public static EventCache scanBasedVarName(String tableName, Map<String, List<String>> ipStringMap){
+        SharedScan sharedScan;
+        int queryId;
+        boolean leader = false;
+        synchronized (pendingScans){
+            sharedScan = pendingScans.get(tableName);
+            if(sharedScan == null){
+                sharedScan = new SharedScan(tableName);
+                pendingScans.put(tableName, sharedScan);
+                leader = true;
+            }
+            queryId = sharedScan.register(ipStringMap);
+        }
+        if(leader){
+            synchronized (pendingScans){
+                // requests that arrive during the running scan are registered into this shared scan
+                while(runningTables.contains(tableName)){
+                    try{
+                        pendingScans.wait();
+                    }catch (InterruptedException e){
+                        // other requests of this shared scan are waiting for results, so we notify them
+                        pendingScans.remove(tableName);
+                        Thread.currentThread().interrupt();
+                        RuntimeException exception = new RuntimeException(e.getMessage());
+                        sharedScan.fail(exception);
+                        throw exception;
+                    }
+                }
+                // later requests start a new shared scan
+                pendingScans.remove(tableName);
+                runningTables.add(tableName);
+            }
+            try{
+                sharedScan.execute();
+            }finally {
+                synchronized (pendingScans){
+                    runningTables.remove(tableName);
+                    pendingScans.notifyAll();
+                }
+            }
+        }
+        return sharedScan.getResult(queryId);
+    }
+
+    private synchronized void fail(RuntimeException e){
+        exception = e;
+        notifyAll();
+    }
+
+    // wait until leader finishes scanning
+    private synchronized EventCache getResult(int queryId){
+        while(results == null && exception == null){
+            try{
+                wait();
+            }catch (InterruptedException e){
+                throw new RuntimeException(e.getMessage());
+            }
+        }
+        if(exception != null){
+            throw exception;
+        }
+        return results.get(queryId);
+    }
+
+    /**
+     * scan the store once for all registered queries
+     * @return  event caches, the i-th cache belongs to the i-th registered query
+     */
+    public List<EventCache> execute(){
+        List<Map<String, List<String>>> queries;
+        synchronized (this){
+            queries = new ArrayList<>(ipStringMaps);
+        }
+        List<EventCache> caches;
+        try{
+            caches = scan(queries);
+        }catch (RuntimeException e){
+            fail(e);
+            throw e;
+        }
+        synchronized (this){
+            results = caches;
+            notifyAll();
+        }
+        return caches;
+    }
+
+    private List<EventCache> scan(List<Map<String, List<String>>> queries){
+        int queryNum = queries.size();
+        List<EventCache> caches = new ArrayList<>(queryNum);
+        // a single query can use parallel scan, and columnar table only reads predicate columns of each query
+        if(queryNum == 1 || SegmentManifest.load(tableName + nodeId).isColumnar()){
+            for(Map<String, List<String>> ipStringMap : queries){
+                caches.add(new FullScan(tableName).scanBasedVarName(ipStringMap));
+            }
+            return caches;
+        }
+
+        EventSchema schema = EventSchema.getRowStorageSchema(tableName, tableName + nodeId);
+        int recordLen = schema.getFixedRecordLen();
+        ZoneMap zoneMap = ZoneMap.load(tableName + nodeId);
+        BitmapIndex index = BitmapIndex.load(tableName + nodeId);
+
+        // state of each query
+        List<Map<String, List<Pair<IndependentPredicate, ColumnInfo>>>> ipMaps = new ArrayList<>(queryNum);
+        CompiledPredicate[][][] kernels = new CompiledPredicate[queryNum][][];
+        RoaringBitmap[] candidatePages = new RoaringBitmap[queryNum];
+        RecordArena[] arenas = new RecordArena[queryNum];
+        List<Map<String, IntArrayList>> varPointers = new ArrayList<>(queryNum);
+        IntArrayList[][] pointerLists = new IntArrayList[queryNum][];
+        for(int q = 0; q < queryNum; q++){
+            Map<String, List<Pair<IndependentPredicate, ColumnInfo>>> ipMap = FullScan.parseIpString(queries.get(q), schema);
+            ipMaps.add(ipMap);
+            List<String> varNames = new ArrayList<>(ipMap.keySet());
+            kernels[q] = FullScan.compileIpMap(varNames, ipMap);
+            candidatePages[q] = BitmapIndex.getCandidatePages(index, ipMap, schema);
+            arenas[q] = new RecordArena(recordLen, 1024);
+            Map<String, IntArrayList> pointers = new HashMap<>(varNames.size() << 1);
+            pointerLists[q] = new IntArrayList[varNames.size()];
+            for(int varId = 0; varId < varNames.size(); varId++){
+                pointerLists[q][varId] = new IntArrayList(128);
+                pointers.put(varNames.get(varId), pointerLists[q][varId]);
+            }
+            varPointers.add(pointers);
+        }
+
+        CompressedPage compressedPage = schema.isCompressed() ? new CompressedPage(schema) : null;
+        byte[] decodedRows = compressedPage == null ? null : new byte[CompressedPage.getMaxRecordNum() * recordLen];
+        ByteBuffer decodedBuffer = compressedPage == null ? null : ByteBuffer.wrap(decodedRows);
+        BufferPool pool = BufferPool.getSharedPool();
+        // activeQueries[i][q]: whether query q needs to read i-th segment
+        List<SegmentManifest.Segment> segments = new ArrayList<>();
+        List<boolean[]> activeQueryList = new ArrayList<>();
+        for(SegmentManifest.Segment segment : SegmentManifest.load(tableName + nodeId).getSegments()){
+            boolean[] activeQueries = new boolean[queryNum];
+            boolean anyActive = false;
+            for(int q = 0; q < queryNum; q++){
+                activeQueries[q] = !FullScan.canSkipSegment(segment, ipMaps.get(q), null);
+                anyActive |= activeQueries[q];
+            }
+            if(anyActive){
+                segments.add(segment);
+                activeQueryList.add(activeQueries);
+            }
+        }
+        boolean readAhead = FullScan.useReadAhead(FullScan.getPageNum(segments));
+
+        for(int s = 0; s < segments.size(); s++){
+            SegmentManifest.Segment segment = segments.get(s);
+            boolean[] activeQueries = activeQueryList.get(s);
+            File file = segment.getFile();
+            long fileSize = file.length();
+            int pageNum = (int) ((fileSize + EventStore.pageSize - 1) / EventStore.pageSize);
+            int basePage = segment.getStartPage();
+            // neededQueries[i]: queries that may be satisfied in i-th page of this segment
+            long[] neededQueries = new long[pageNum];
+            boolean[] neededPages = new boolean[pageNum];
+            for(int i = 0; i < pageNum; i++){
+                int page = basePage + i;
+                for(int q = 0; q < queryNum; q++){
+                    if(activeQueries[q] && (candidatePages[q] == null || candidatePages[q].contains(page))
+                            && !FullScan.canSkipPage(zoneMap, page, ipMaps.get(q), schema)){
+                        neededQueries[i] |= 1L << (q & 63);
+                        neededPages[i] = true;
+                    }
+                }
+            }
+
+            if(readAhead){
+                try(ReadAheadScanner scanner = new ReadAheadScanner(file, 0, fileSize, neededPages)){
+                    ReadAheadScanner.Chunk chunk;
+                    while((chunk = scanner.next()) != null){
+                        for(int pagePos = 0; pagePos < chunk.getLength(); pagePos += EventStore.pageSize){
+                            int localPage = (int) ((chunk.getStartPos() + pagePos) / EventStore.pageSize);
+                            if(neededPages[localPage]){
+                                int len = Math.min(EventStore.pageSize, chunk.getLength() - pagePos);
+                                processPage(chunk.getData(), chunk.getBuffer(), pagePos, len, recordLen, compressedPage, decodedRows,
+                                        decodedBuffer, neededQueries[localPage], kernels, arenas, pointerLists);
+                            }
+                        }
+                        scanner.release(chunk);
+                    }
+                }
+            }else{
+                int fileId = pool.register(file);
+                for(int localPage = 0; localPage < pageNum; localPage++){
+                    if(!neededPages[localPage]){
+                        continue;
+                    }
+                    BufferPool.Frame frame = pool.pin(fileId, localPage);
+                    if(frame.getLength() == 0){
+                        pool.unpin(frame);
+                        throw new RuntimeException("page " + localPage + " of file '" + file.getName() + "' is empty, this file may be changed during scan");
+                    }
+                    processPage(frame.getData(), frame.getBuffer(), 0, frame.getLength(), recordLen, compressedPage, decodedRows,
+                            decodedBuffer, neededQueries[localPage], kernels, arenas, pointerLists);
+                    pool.unpin(frame);
+                }
+            }
+        }
+
+        for(int q = 0; q < queryNum; q++){
+            caches.add(new EventCache(schema, arenas[q], FullScan.toPointerArrays(varPointers.get(q))));
+        }
+        return caches;
+    }
+
+    // decode a page once, then evaluate each query that needs this page
+    // neededQueries is a bit set, if there are more than 64 queries, query q uses bit (q % 64)
+    private static void processPage(byte[] data, ByteBuffer buffer, int pagePos, int length, int recordLen,
+                                    CompressedPage compressedPage, byte[] decodedRows, ByteBuffer decodedBuffer, long neededQueries,
+                                    CompiledPredicate[][][] kernels, RecordArena[] arenas, IntArrayList[][] pointerLists){
+        byte[] rows = data;
+        ByteBuffer bb = buffer;
+        int recordNum = length / recordLen;
+        if(compressedPage != null){
+            recordNum = compressedPage.decode(buffer, pagePos, decodedRows);
+            rows = decodedRows;
+            bb = decodedBuffer;
+            pagePos = 0;
+        }
+        for(int q = 0; q < kernels.length; q++){
+            if((neededQueries & (1L << (q & 63))) != 0){
+                FullScan.evaluateRecords(rows, bb, pagePos, recordNum, recordLen, kernels[q], arenas[q], pointerLists[q]);
+            }
+        }
+    }
+}
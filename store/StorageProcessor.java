@@ -1,39 +1,82 @@
 package store;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * 这个类测试数据：写完crimes文件需要50s,crimes文件大概8M条事件
  * 合成数据集：insertion cost 76033ms
  */
 public class StorageProcessor {
+    // number of parser threads, if ingestThreadNum > 1, storeCSVToByte uses pipelined ingestion
+    public static int ingestThreadNum = 1;
+    // number of pages in a batch, a parser thread converts a batch of lines each time
+    public static int batchPageNum = 64;
 
     public static void storeCSVToByte(String filename, EventSchema schema){
+        if(ingestThreadNum > 1){
+            pipelinedStoreCSVToByte(filename, schema);
+            return;
+        }
         String sep = File.separator;
         String prefixPath = System.getProperty("user.dir") + sep + "src" + sep + "main" + sep;
         //String filePath = prefixPath + "dataset" + sep + "mini_" + filename + ".csv";
         String filePath = prefixPath + "dataset" + sep + filename + ".csv";
         EventStore store = new EventStore(filename, true);
+        // dictionary columns (declared in json file) are encoded as int codes
+        schema = schema.createStorageSchema();
+        // min/max values of each page, FullScan uses it to skip pages
+        ZoneMap zoneMap = new ZoneMap(schema);
+        // pages of each value of index columns, it is null if this table does not declare index columns
+        BitmapIndex index = BitmapIndex.create(schema, filename);
+        // if this table uses compressed pages, records are buffered in a page until it is full
+        CompressedPage compressedPage = schema.isCompressed() ? new CompressedPage(schema) : null;
 
         // store records into file
-        try {
-            FileReader f = new FileReader(filePath);
-            BufferedReader b = new BufferedReader(f);
+        try (MappedCSVReader reader = new MappedCSVReader(filePath)){
             // delete first line
-            String line;
-            b.readLine();
-            while ((line = b.readLine()) != null) {
-                byte[] record = schema.covertStringToBytes(line);
-                store.insertSingleRecord(record, schema.getFixedRecordLen());
+            reader.nextLines(1);
+            // we parse bytes of each line into the same record array, store copies it into page buffer
+            byte[] record = new byte[schema.getFixedRecordLen()];
+            ByteBuffer recordBuffer = ByteBuffer.wrap(record);
+            while (reader.nextLines(1) == 1) {
+                ByteBuffer src = reader.getBuffer();
+                int start = reader.getStart();
+                int end = reader.getEnd();
+                if(end > start && src.get(end - 1) == '\n'){
+                    end--;
+                }
+                if(end > start && src.get(end - 1) == '\r'){
+                    end--;
+                }
+                schema.convertBytesToRecord(src, start, end, recordBuffer, 0);
+                if(compressedPage != null){
+                    addCompressedRecord(store, zoneMap, index, schema, compressedPage, record, 0);
+                }else{
+                    RID rid = store.insertSingleRecord(record, schema.getFixedRecordLen());
+                    updatePageStatistics(zoneMap, index, rid.getPage(), record, 0, schema);
+                }
+            }
+            if(compressedPage != null){
+                writeCompressedPage(store, zoneMap, index, schema, compressedPage);
             }
-            b.close();
-            f.close();
             // force flush
-            store.forceFlush();
+            store.close();
+            zoneMap.store(filename);
+            // time range of each segment, FullScan uses it to skip segments
+            SegmentManifest.create(filename, zoneMap, schema).store();
+            if(index != null){
+                index.store(filename);
+            }
+            schema.storeDictionaries(VarcharDictionary.getDictionaryFile(filename));
         }catch (IOException e) {
             System.out.println(e.getMessage());
         }
@@ -56,6 +99,387 @@ public class StorageProcessor {
 //        }
     }
 
+    /**
+     * add a record into compressed page, if this page is full, we write it into store and start a new page
+     * @param store             event store
+     * @param zoneMap           zone map
+     * @param index             bitmap index, can be null
+     * @param schema            storage schema
+     * @param compressedPage    compressed page
+     * @param records           byte array that stores the record
+     * @param recordPos         record start position
+     */
+    static void addCompressedRecord(EventStore store, ZoneMap zoneMap, BitmapIndex index, EventSchema schema,
+                                    CompressedPage compressedPage, byte[] records, int recordPos){
+        if(!compressedPage.add(records, recordPos)){
+            writeCompressedPage(store, zoneMap, index, schema, compressedPage);
+            if(!compressedPage.add(records, recordPos)){
+                throw new RuntimeException("record is too long to be stored in a compressed page");
+            }
+        }
+    }
+
+    static void writeCompressedPage(EventStore store, ZoneMap zoneMap, BitmapIndex index, EventSchema schema, CompressedPage compressedPage){
+        int recordNum = compressedPage.getRecordNum();
+        if(recordNum == 0){
+            return;
+        }
+        int page = store.appendPage(compressedPage);
+        // encoding does not change row format records in compressed page
+        int recordLen = schema.getFixedRecordLen();
+        for(int i = 0; i < recordNum; i++){
+            updatePageStatistics(zoneMap, index, page, compressedPage.getRecords(), i * recordLen, schema);
+        }
+    }
+
+    // a record is stored in a page, then we update zone map and bitmap index of this page
+    static void updatePageStatistics(ZoneMap zoneMap, BitmapIndex index, int page, byte[] records, int recordPos, EventSchema schema){
+        zoneMap.update(page, records, recordPos, schema);
+        if(index != null){
+            index.update(page, records, recordPos, schema);
+        }
+    }
+
+    /**
+     * pipelined ingestion: reader (current thread) -> parser threads -> writer thread
+     * reader finds a batch of lines (batchPageNum full pages) in the mapped csv file and sends its range to parsers,
+     * parsers convert bytes of lines into fixed length records (no String objects),
+     * writer appends batches in order, thus the store file is same as storeCSVToByte
+     * (except that the last page may be padded)
+     * if a parser or the writer fails, ingestion stops and throws the exception, zone map and manifest are not written
+     * @param filename      csv file name
+     * @param schema        event schema
+     */
+    public static void pipelinedStoreCSVToByte(String filename, EventSchema schema){
+        String sep = File.separator;
+        String prefixPath = System.getProperty("user.dir") + sep + "src" + sep + "main" + sep;
+        String filePath = prefixPath + "dataset" + sep + filename + ".csv";
+        EventStore store = new EventStore(filename, true);
+        schema = schema.createStorageSchema();
+        ZoneMap zoneMap = new ZoneMap(schema);
+        BitmapIndex index = BitmapIndex.create(schema, filename);
+
+        int recordNumPerPage = EventStore.pageSize / schema.getFixedRecordLen();
+        int batchRecordNum = recordNumPerPage * batchPageNum;
+        // bounded queue, then reader cannot run too far ahead of parsers
+        BlockingQueue<IngestBatch> parseQueue = new ArrayBlockingQueue<>(ingestThreadNum << 1);
+        BlockingQueue<IngestBatch> writeQueue = new LinkedBlockingQueue<>();
+        // first exception of parsers and writer
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        List<ParseThread> parseThreads = new ArrayList<>(ingestThreadNum);
+        for(int i = 0; i < ingestThreadNum; i++){
+            ParseThread thread = new ParseThread(schema, parseQueue, writeQueue, failure);
+            thread.start();
+            parseThreads.add(thread);
+        }
+        WriteThread writeThread = new WriteThread(store, zoneMap, index, schema, writeQueue, failure);
+        writeThread.start();
+
+        int batchId = 0;
+        try (MappedCSVReader reader = new MappedCSVReader(filePath)){
+            // delete first line
+            reader.nextLines(1);
+            int lineNum;
+            while (failure.get() == null && (lineNum = reader.nextLines(batchRecordNum)) > 0) {
+                putBatch(parseQueue, new IngestBatch(batchId++, reader.getBuffer(), reader.getStart(), reader.getEnd(), lineNum), failure);
+            }
+        }catch (IOException | InterruptedException | RuntimeException e) {
+            failure.compareAndSet(null, e);
+        }
+
+        try{
+            // a batch without lines tells parser to stop
+            for(int i = 0; i < ingestThreadNum; i++){
+                putBatch(parseQueue, new IngestBatch(-1, null), failure);
+            }
+            for(ParseThread thread : parseThreads){
+                thread.join();
+            }
+            // all batches have been parsed, tell writer to stop
+            writeQueue.put(new IngestBatch(-1, null));
+            writeThread.join();
+        }catch (InterruptedException e){
+            failure.compareAndSet(null, e);
+        }
+        // writer must have appended every batch, otherwise store, zone map and index are truncated
+        if(failure.get() == null && (!writeThread.getPendingBatches().isEmpty() || writeThread.getNextBatchId() != batchId)){
+            failure.set(new RuntimeException("lost batches, written batch number: " + writeThread.getNextBatchId() + ", batch number: " + batchId));
+        }
+        store.close();
+        if(failure.get() != null){
+            throw new RuntimeException("pipelined ingestion of '" + filename + "' failed", failure.get());
+        }
+        zoneMap.store(filename);
+        SegmentManifest.create(filename, zoneMap, schema).store();
+        if(index != null){
+            index.store(filename);
+        }
+        schema.storeDictionaries(VarcharDictionary.getDictionaryFile(filename));
+    }
+
+    // if all parsers have failed, nobody takes batches from queue, so we cannot block in put
+    private static void putBatch(BlockingQueue<IngestBatch> parseQueue, IngestBatch batch, AtomicReference<Throwable> failure) throws InterruptedException{
+        while(!parseQueue.offer(batch, 100, TimeUnit.MILLISECONDS)){
+            if(failure.get() != null){
+                if(batch.src != null){
+                    // lines are not needed any more
+                    return;
+                }
+                // stop signal must be delivered to live parsers, so we discard the lines that wait in queue
+                parseQueue.clear();
+            }
+        }
+    }
+
+    // a batch is either a range of csv lines (reader -> parser) or parsed records (parser -> writer)
+    static class IngestBatch {
+        final int batchId;
+        final ByteBuffer src;
+        final int start;
+        final int end;
+        final int lineNum;
+        final byte[] records;
+
+        IngestBatch(int batchId, ByteBuffer src, int start, int end, int lineNum){
+            this.batchId = batchId;
+            this.src = src;
+            this.start = start;
+            this.end = end;
+            this.lineNum = lineNum;
+            this.records = null;
+        }
+
+        IngestBatch(int batchId, byte[] records){
+            this.batchId = batchId;
+            this.src = null;
+            this.start = 0;
+            this.end = 0;
+            this.lineNum = 0;
+            this.records = records;
+        }
+    }
+
+    /**
+     * read only csv reader based on memory mapped file, it does not decode lines into String
+     * the file is mapped by windows (at most 1GB), when a group of lines crosses the end of a window,
+     * we map a new window from the start of this group
+     */
+    static class MappedCSVReader implements Closeable {
+        private static final long MAX_WINDOW_SIZE = 1L << 30;
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private final long fileSize;
+        private MappedByteBuffer window;
+        private long windowStart;           // file position of current window
+        private int pos;                    // read position in current window
+        private int groupStart;             // [groupStart, groupEnd) is the last group of lines
+        private int groupEnd;
+
+        MappedCSVReader(String filePath) throws IOException{
+            raf = new RandomAccessFile(filePath, "r");
+            channel = raf.getChannel();
+            fileSize = channel.size();
+            map(0);
+        }
+
+        private void map(long start) throws IOException{
+            windowStart = start;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(MAX_WINDOW_SIZE, fileSize - start));
+            pos = 0;
+        }
+
+        /**
+         * find next lines, then getBuffer/getStart/getEnd return the range of these lines,
+         * the range includes line separators
+         * @param lineNum   maximum number of lines
+         * @return          number of lines, 0 means end of file
+         */
+        int nextLines(int lineNum) throws IOException{
+            while(true){
+                int limit = window.limit();
+                boolean lastWindow = windowStart + limit == fileSize;
+                int count = 0;
+                int p = pos;
+                while(count < lineNum && p < limit){
+                    if(window.get(p++) == '\n'){
+                        count++;
+                    }
+                }
+                if(count < lineNum && !lastWindow){
+                    if(pos == 0){
+                        throw new RuntimeException("lines are too long, cannot map them in a window");
+                    }
+                    map(windowStart + pos);
+                    continue;
+                }
+                // the last line may not end with line separator
+                if(count < lineNum && p > pos && window.get(p - 1) != '\n'){
+                    count++;
+                }
+                groupStart = pos;
+                groupEnd = p;
+                pos = p;
+                return count;
+            }
+        }
+
+        ByteBuffer getBuffer(){
+            return window;
+        }
+
+        int getStart(){
+            return groupStart;
+        }
+
+        int getEnd(){
+            return groupEnd;
+        }
+
+        @Override
+        public void close() throws IOException{
+            channel.close();
+            raf.close();
+        }
+    }
+
+    static class ParseThread extends Thread {
+        private final EventSchema schema;
+        private final BlockingQueue<IngestBatch> parseQueue;
+        private final BlockingQueue<IngestBatch> writeQueue;
+        private final AtomicReference<Throwable> failure;
+
+        ParseThread(EventSchema schema, BlockingQueue<IngestBatch> parseQueue, BlockingQueue<IngestBatch> writeQueue,
+                    AtomicReference<Throwable> failure){
+            this.schema = schema;
+            this.parseQueue = parseQueue;
+            this.writeQueue = writeQueue;
+            this.failure = failure;
+        }
+
+        @Override
+        public void run() {
+            try{
+                while(true){
+                    IngestBatch batch = parseQueue.take();
+                    if(batch.src == null){
+                        break;
+                    }
+                    byte[] records = schema.batchConvertBytesToRecords(batch.src, batch.start, batch.end, batch.lineNum);
+                    writeQueue.put(new IngestBatch(batch.batchId, records));
+                }
+            }catch (InterruptedException | RuntimeException e){
+                // this batch is lost, the reader stops and storeCSVToByte throws the exception
+                failure.compareAndSet(null, e);
+            }
+        }
+    }
+
+    // writer appends batches in the order of batch id, out-of-order batches wait in a map
+    static class WriteThread extends Thread {
+        private final EventStore store;
+        private final ZoneMap zoneMap;
+        private final BitmapIndex index;
+        private final EventSchema schema;
+        private final BlockingQueue<IngestBatch> writeQueue;
+        private final AtomicReference<Throwable> failure;
+        private final Map<Integer, byte[]> pendingBatches = new HashMap<>(16);
+        private int nextBatchId = 0;
+
+        WriteThread(EventStore store, ZoneMap zoneMap, BitmapIndex index, EventSchema schema, BlockingQueue<IngestBatch> writeQueue,
+                    AtomicReference<Throwable> failure){
+            this.store = store;
+            this.zoneMap = zoneMap;
+            this.index = index;
+            this.schema = schema;
+            this.writeQueue = writeQueue;
+            this.failure = failure;
+        }
+
+        // batches that wait for an earlier batch, it should be empty after join
+        Map<Integer, byte[]> getPendingBatches(){
+            return pendingBatches;
+        }
+
+        // number of appended batches
+        int getNextBatchId(){
+            return nextBatchId;
+        }
+
+        @Override
+        public void run() {
+            int recordLen = schema.getFixedRecordLen();
+            int recordNumPerPage = EventStore.pageSize / recordLen;
+            CompressedPage compressedPage = schema.isCompressed() ? new CompressedPage(schema) : null;
+            try{
+                while(true){
+                    IngestBatch batch = writeQueue.take();
+                    if(batch.batchId == -1){
+                        break;
+                    }
+                    pendingBatches.put(batch.batchId, batch.records);
+                    byte[] records;
+                    while((records = pendingBatches.remove(nextBatchId)) != null){
+                        if(compressedPage != null){
+                            // compressed pages hold different numbers of records, so we write records one by one
+                            int recordNum = records.length / recordLen;
+                            for(int i = 0; i < recordNum; i++){
+                                addCompressedRecord(store, zoneMap, index, schema, compressedPage, records, i * recordLen);
+                            }
+                            nextBatchId++;
+                            continue;
+                        }
+                        store.appendBatchRecords(records, recordLen);
+                        // all batches except the last one have batchPageNum full pages
+                        int startPage = nextBatchId * batchPageNum;
+                        int recordNum = records.length / recordLen;
+                        for(int i = 0; i < recordNum; i++){
+                            updatePageStatistics(zoneMap, index, startPage + i / recordNumPerPage, records, i * recordLen, schema);
+                        }
+                        nextBatchId++;
+                    }
+                }
+                if(compressedPage != null){
+                    writeCompressedPage(store, zoneMap, index, schema, compressedPage);
+                }
+            }catch (InterruptedException | RuntimeException e){
+                failure.compareAndSet(null, e);
+            }
+        }
+    }
+
+    // same as storeCSVToByte, but we store each column in a separate file
+    public static void storeCSVToColumn(String filename, EventSchema schema){
+        String sep = File.separator;
+        String prefixPath = System.getProperty("user.dir") + sep + "src" + sep + "main" + sep;
+        String filePath = prefixPath + "dataset" + sep + filename + ".csv";
+        schema = schema.createStorageSchema();
+        // a table only has one physical format, old row store of this table is out of date
+        EventStore.drop(filename);
+        ColumnStore store = new ColumnStore(filename, schema, true);
+
+        try {
+            FileReader f = new FileReader(filePath);
+            BufferedReader b = new BufferedReader(f);
+            // delete first line
+            String line;
+            b.readLine();
+            while ((line = b.readLine()) != null) {
+                byte[] record = schema.covertStringToBytes(line);
+                store.insertSingleRecord(record);
+            }
+            b.close();
+            f.close();
+            // force flush
+            store.forceFlush();
+            schema.storeDictionaries(ColumnStore.getDictionaryFile(filename));
+            // readers take the format of this table from manifest
+            SegmentManifest.createColumnar(filename).store();
+        }catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
     public static void initialSynthetic(){
         String sql = "create table SYNTHETIC(" +
                 "       type VARCHAR(8)," +
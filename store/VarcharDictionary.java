@@ -0,0 +1,189 @@
+package store;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * dictionary of a low cardinality VARCHAR column, each value is stored as an int code (4 bytes) instead of a char array
+ * dictionary columns are declared by dictionaryColumns in json file (e.g., SYNTHETIC.json), tables without it are not encoded
+ * codes are assigned in the order of first appearance at ingest time, thus codes are local to a store file
+ * (storage node decodes records before sending them to computer node)
+ * all dictionaries of a store are saved next to the store file: event_store/STORENAME.dict
+ * file format: [dictionary number (int)] then each dictionary: [column id (int)][value number (int)][(length (int), bytes) * value number]
+ */
+public class VarcharDictionary {
+    private final int maxLen;               // declared varchar length, longer values are truncated like fixed char array
+    // value bytes (without padding) -> code, parser threads look up existing values without lock
+    private final ConcurrentHashMap<ByteBuffer, Integer> codes;
+    private byte[][] values;                // values[code]: value bytes without padding
+    private String[] strings;               // strings[code]: decoded string
+    private int size;
+
+    public VarcharDictionary(int maxLen){
+        this.maxLen = maxLen;
+        codes = new ConcurrentHashMap<>(64);
+        values = new byte[32][];
+        strings = new String[32];
+        size = 0;
+    }
+
+    public static File getDictionaryFile(String storeName){
+        String storePath = System.getProperty("user.dir") + File.separator + "event_store";
+        return new File(storePath + File.separator + storeName.toUpperCase() + ".dict");
+    }
+
+    public synchronized int size(){
+        return size;
+    }
+
+    public int getMaxLen(){
+        return maxLen;
+    }
+
+    /**
+     * obtain code of a value, if this value is new then assign a new code
+     * parser threads share one dictionary, most values already have codes, so only new values take the lock
+     * @param src       source bytes
+     * @param start     start position of value
+     * @param end       end position of value (exclusive)
+     * @return          code
+     */
+    public int encode(ByteBuffer src, int start, int end){
+        end = Math.min(end, start + maxLen);
+        byte[] value = new byte[end - start];
+        for(int i = start; i < end; i++){
+            value[i - start] = src.get(i);
+        }
+        // ByteBuffer compares remaining bytes, so it can be used as key of value bytes
+        ByteBuffer key = ByteBuffer.wrap(value);
+        Integer code = codes.get(key);
+        return code != null ? code : codes.computeIfAbsent(key, k -> addValue(value));
+    }
+
+    public int encode(byte[] value){
+        return encode(ByteBuffer.wrap(value), 0, value.length);
+    }
+
+    // assign next code to a new value, computeIfAbsent guarantees that a value is added once
+    private synchronized int addValue(byte[] value){
+        if(size == values.length){
+            values = Arrays.copyOf(values, size << 1);
+            strings = Arrays.copyOf(strings, size << 1);
+        }
+        values[size] = value;
+        strings[size] = new String(value);
+        return size++;
+    }
+
+    /**
+     * find the code of a constant value, it is used to rewrite predicates
+     * @param value     string value
+     * @return          code, -1 means this value does not appear in store
+     */
+    public int lookup(String value){
+        byte[] bytes = value.getBytes();
+        // fixed char array cannot store a longer value
+        if(bytes.length > maxLen){
+            return -1;
+        }
+        Integer code = codes.get(ByteBuffer.wrap(bytes));
+        return code == null ? -1 : code;
+    }
+
+    public String decode(int code){
+        return strings[code];
+    }
+
+    // write value as a fixed length char array (same as the record without dictionary encoding)
+    public void copyTo(int code, ByteBuffer dst){
+        byte[] value = values[code];
+        dst.put(value);
+        for(int i = value.length; i < maxLen; i++){
+            dst.put((byte) 0);
+        }
+    }
+
+    public byte[] getPaddedBytes(int code){
+        return Arrays.copyOf(values[code], maxLen);
+    }
+
+    /**
+     * save dictionaries of a store
+     * @param file          dictionary file
+     * @param dictionaries  dictionaries[i] is the dictionary of i-th column, it can be null
+     */
+    public static void store(File file, VarcharDictionary[] dictionaries){
+        int dictionaryNum = 0;
+        int size = 4;
+        for(VarcharDictionary dictionary : dictionaries){
+            if(dictionary != null){
+                dictionaryNum++;
+                size += 8;
+                for(int code = 0; code < dictionary.size; code++){
+                    size += 4 + dictionary.values[code].length;
+                }
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(dictionaryNum);
+        for(int i = 0; i < dictionaries.length; i++){
+            VarcharDictionary dictionary = dictionaries[i];
+            if(dictionary != null){
+                buffer.putInt(i);
+                buffer.putInt(dictionary.size);
+                for(int code = 0; code < dictionary.size; code++){
+                    buffer.putInt(dictionary.values[code].length);
+                    buffer.put(dictionary.values[code]);
+                }
+            }
+        }
+        buffer.flip();
+        try(FileChannel channel = new FileOutputStream(file, false).getChannel()){
+            while(buffer.hasRemaining()){
+                channel.write(buffer);
+            }
+        }catch (IOException e){
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * read dictionaries from disk
+     * @param file          dictionary file
+     * @param maxLens       declared length of each column
+     * @return              dictionaries, dictionaries[i] is null if i-th column is not encoded
+     */
+    public static VarcharDictionary[] load(File file, List<Integer> maxLens){
+        if(!file.exists()){
+            throw new RuntimeException("dictionary file: '" + file.getName() + "' does not exist, please store this table again");
+        }
+        VarcharDictionary[] dictionaries = new VarcharDictionary[maxLens.size()];
+        try(RandomAccessFile raf = new RandomAccessFile(file, "r")){
+            ByteBuffer buffer = ByteBuffer.allocate((int) raf.length());
+            FileChannel channel = raf.getChannel();
+            while(buffer.hasRemaining() && channel.read(buffer) != -1){
+                // read whole file
+            }
+            buffer.flip();
+            int dictionaryNum = buffer.getInt();
+            for(int i = 0; i < dictionaryNum; i++){
+                int columnId = buffer.getInt();
+                int valueNum = buffer.getInt();
+                VarcharDictionary dictionary = new VarcharDictionary(maxLens.get(columnId));
+                for(int code = 0; code < valueNum; code++){
+                    int len = buffer.getInt();
+                    dictionary.encode(buffer, buffer.position(), buffer.position() + len);
+                    buffer.position(buffer.position() + len);
+                }
+                dictionaries[columnId] = dictionary;
+            }
+        }catch (IOException e){
+            throw new RuntimeException(e.getMessage());
+        }
+        return dictionaries;
+    }
+}
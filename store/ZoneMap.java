@@ -0,0 +1,231 @@
+package store;
+
+import query.IndependentPredicate;
+import utils.Pair;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * zone map records minimum and maximum values of each page for all numeric columns (including EVENTTIME)
+ * it is built at ingest time and stored next to the store file: event_store/TABLENAME.zonemap
+ * FullScan uses it to skip the pages that cannot satisfy independent predicates
+ * (time range can be expressed as independent predicates on timestamp column)
+ * file format: [columnNum (int)][pageNum (int)][column id (int) * columnNum][(min, max) (double) * pageNum * columnNum]
+ */
+public class ZoneMap {
+    private final int[] columnIds;                  // ids of numeric columns in schema
+    private double[][] minValues;                   // minValues[i][page]: minimum value of i-th numeric column
+    private double[][] maxValues;                   // maxValues[i][page]: maximum value of i-th numeric column
+    private int pageNum;
+
+    public ZoneMap(EventSchema schema){
+        List<DataType> dataTypes = schema.getDataTypes();
+        List<Integer> ids = new ArrayList<>(dataTypes.size());
+        for(int i = 0; i < dataTypes.size(); i++){
+            if(dataTypes.get(i) != DataType.VARCHAR){
+                ids.add(i);
+            }
+        }
+        columnIds = new int[ids.size()];
+        for(int i = 0; i < columnIds.length; i++){
+            columnIds[i] = ids.get(i);
+        }
+        minValues = new double[columnIds.length][64];
+        maxValues = new double[columnIds.length][64];
+        pageNum = 0;
+    }
+
+    private ZoneMap(int[] columnIds, double[][] minValues, double[][] maxValues, int pageNum){
+        this.columnIds = columnIds;
+        this.minValues = minValues;
+        this.maxValues = maxValues;
+        this.pageNum = pageNum;
+    }
+
+    public int getPageNum(){
+        return pageNum;
+    }
+
+    public static File getZoneMapFile(String tableName){
+        String storePath = System.getProperty("user.dir") + File.separator + "event_store";
+        return new File(storePath + File.separator + tableName.toUpperCase() + ".zonemap");
+    }
+
+    /**
+     * update statistics of a page, note that pages are written in order
+     * @param page      page id (see RID)
+     * @param record    record that is stored in this page
+     * @param schema    event schema
+     */
+    public void update(int page, byte[] record, EventSchema schema){
+        update(page, record, 0, schema);
+    }
+
+    /**
+     * same as update(page, record, schema), but the record is stored in a batch
+     * @param page          page id
+     * @param records       a batch of records
+     * @param recordPos     start position of record in this batch
+     * @param schema        event schema
+     */
+    public void update(int page, byte[] records, int recordPos, EventSchema schema){
+        if(page >= pageNum){
+            if(page >= minValues[0].length){
+                int newCapacity = Math.max(page + 1, minValues[0].length << 1);
+                for(int i = 0; i < columnIds.length; i++){
+                    minValues[i] = Arrays.copyOf(minValues[i], newCapacity);
+                    maxValues[i] = Arrays.copyOf(maxValues[i], newCapacity);
+                }
+            }
+            for(int i = 0; i < columnIds.length; i++){
+                minValues[i][page] = Double.MAX_VALUE;
+                maxValues[i][page] = -Double.MAX_VALUE;
+            }
+            pageNum = page + 1;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(records);
+        List<DataType> dataTypes = schema.getDataTypes();
+        List<String> columnNames = schema.getColumnNames();
+        for(int i = 0; i < columnIds.length; i++){
+            int startPos = recordPos + schema.getColumnInfo(columnNames.get(columnIds[i])).getStartPos();
+            double value;
+            switch (dataTypes.get(columnIds[i])){
+                case INT:
+                    value = buffer.getInt(startPos);
+                    break;
+                case LONG:
+                    value = buffer.getLong(startPos);
+                    break;
+                case FLOAT:
+                    value = buffer.getFloat(startPos);
+                    break;
+                default:    // case DOUBLE:
+                    value = buffer.getDouble(startPos);
+            }
+            minValues[i][page] = Math.min(minValues[i][page], value);
+            maxValues[i][page] = Math.max(maxValues[i][page], value);
+        }
+    }
+
+    /**
+     * check whether a page may contain records that satisfy all independent predicates
+     * @param page          page id
+     * @param ips           independent predicates of a variable
+     * @param schema        event schema
+     * @return              false means this page can be skipped
+     */
+    public boolean mayContain(int page, List<Pair<IndependentPredicate, ColumnInfo>> ips, EventSchema schema){
+        if(page >= pageNum){
+            return true;
+        }
+        List<String> columnNames = schema.getColumnNames();
+        for(Pair<IndependentPredicate, ColumnInfo> pair : ips){
+            ColumnInfo columnInfo = pair.getValue();
+            if(columnInfo.getDataType() == DataType.VARCHAR){
+                continue;
+            }
+            String attrName = pair.getKey().getAttributeName();
+            for(int i = 0; i < columnIds.length; i++){
+                if(columnNames.get(columnIds[i]).equals(attrName)){
+                    if(!pair.getKey().mayHold(minValues[i][page], maxValues[i][page], columnInfo.getDataType())){
+                        return false;
+                    }
+                    break;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * minimum and maximum values of a column in pages [startPage, endPage), SegmentManifest uses it
+     * @param columnName    column name
+     * @param startPage     start page
+     * @param endPage       end page (exclusive)
+     * @param schema        event schema
+     * @return              {min, max}, null if zone map does not record this column
+     */
+    public double[] getRange(String columnName, int startPage, int endPage, EventSchema schema){
+        List<String> columnNames = schema.getColumnNames();
+        for(int i = 0; i < columnIds.length; i++){
+            if(columnNames.get(columnIds[i]).equals(columnName)){
+                double minValue = Double.MAX_VALUE;
+                double maxValue = -Double.MAX_VALUE;
+                for(int page = startPage; page < Math.min(endPage, pageNum); page++){
+                    minValue = Math.min(minValue, minValues[i][page]);
+                    maxValue = Math.max(maxValue, maxValues[i][page]);
+                }
+                return new double[]{minValue, maxValue};
+            }
+        }
+        return null;
+    }
+
+    public void store(String tableName){
+        int columnNum = columnIds.length;
+        ByteBuffer buffer = ByteBuffer.allocate(8 + columnNum * 4 + columnNum * pageNum * 16);
+        buffer.putInt(columnNum);
+        buffer.putInt(pageNum);
+        for(int columnId : columnIds){
+            buffer.putInt(columnId);
+        }
+        for(int i = 0; i < columnNum; i++){
+            for(int page = 0; page < pageNum; page++){
+                buffer.putDouble(minValues[i][page]);
+                buffer.putDouble(maxValues[i][page]);
+            }
+        }
+        buffer.flip();
+        try(FileChannel channel = new FileOutputStream(getZoneMapFile(tableName), false).getChannel()){
+            while(buffer.hasRemaining()){
+                channel.write(buffer);
+            }
+        }catch (IOException e){
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * read zone map from disk
+     * @param tableName     table name
+     * @return              zone map, if this table does not have zone map then return null
+     */
+    public static ZoneMap load(String tableName){
+        File file = getZoneMapFile(tableName);
+        if(!file.exists()){
+            return null;
+        }
+        try(RandomAccessFile raf = new RandomAccessFile(file, "r")){
+            ByteBuffer buffer = ByteBuffer.allocate((int) raf.length());
+            FileChannel channel = raf.getChannel();
+            while(buffer.hasRemaining() && channel.read(buffer) != -1){
+                // read whole file
+            }
+            buffer.flip();
+            int columnNum = buffer.getInt();
+            int pageNum = buffer.getInt();
+            int[] columnIds = new int[columnNum];
+            for(int i = 0; i < columnNum; i++){
+                columnIds[i] = buffer.getInt();
+            }
+            double[][] minValues = new double[columnNum][pageNum];
+            double[][] maxValues = new double[columnNum][pageNum];
+            for(int i = 0; i < columnNum; i++){
+                for(int page = 0; page < pageNum; page++){
+                    minValues[i][page] = buffer.getDouble();
+                    maxValues[i][page] = buffer.getDouble();
+                }
+            }
+            return new ZoneMap(columnIds, minValues, maxValues, pageNum);
+        }catch (IOException e){
+            System.out.println(e.getMessage());
+        }
+        return null;
+    }
+}
@@ -0,0 +1,39 @@
+package utils;
+
+import java.util.Arrays;
+
+/**
+ * growable list of primitive int values, it avoids boxed Integer
+ */
+public class IntArrayList {
+    private int[] values;
+    private int size;
+
+    public IntArrayList(int initialCapacity){
+        values = new int[Math.max(1, initialCapacity)];
+        size = 0;
+    }
+
+    public void add(int value){
+        if(size == values.length){
+            values = Arrays.copyOf(values, values.length << 1);
+        }
+        values[size++] = value;
+    }
+
+    public int get(int index){
+        return values[index];
+    }
+
+    public int size(){
+        return size;
+    }
+
+    public boolean isEmpty(){
+        return size == 0;
+    }
+
+    public int[] toArray(){
+        return Arrays.copyOf(values, size);
+    }
+}
@@ -224,6 +224,28 @@ public class ReplayIntervals {
         return false;
     }
 
+    /**
+     * check whether a time range overlaps any interval, FullScan uses it to skip segments
+     * before calling this function, you should call sortAndReconstruct function
+     * @param startTime     start time
+     * @param endTime       end time
+     * @return              true if [startTime, endTime] overlaps an interval
+     */
+    public boolean overlaps(long startTime, long endTime){
+        // binary search the first interval whose end time >= startTime
+        int left = 0;
+        int right = intervals.size() - 1;
+        while(left <= right){
+            int mid = (left + right) / 2;
+            if(intervals.get(mid).getEndTime() < startTime){
+                left = mid + 1;
+            }else{
+                right = mid - 1;
+            }
+        }
+        return left < intervals.size() && intervals.get(left).getStartTime() <= endTime;
+    }
+
     /**
      * when we insert all intervals, we need to call this function to ensure it is sorted
      */